@@ -0,0 +1,205 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The result of a load replay. A report can be saved as a baseline, and later
+ * reports can be compared to the baseline to detect regressions.
+ */
+public class LatencyReport {
+    private static final String[] LATENCY_METRICS = { "latency.p50.ms", "latency.p99.ms", "latency.p999.ms" };
+    private static final String[] RSS_METRICS = { "rss.p50.mb", "rss.max.mb" };
+    private static final String THROUGHPUT = "throughput.per.second";
+    private static final String INVOCATIONS = "invocations";
+    private static final String EXIT_STATUS_PREFIX = "exit.status.";
+    private final Properties metrics;
+    private final Map<Integer, Long> exitCodes;
+
+    private LatencyReport(final Properties metrics, final Map<Integer, Long> exitCodes) {
+        this.metrics = metrics;
+        this.exitCodes = exitCodes;
+    }
+
+    /**
+     * Create a report.
+     *
+     * @param latencies the latency of each invocation in nanoseconds.
+     * @param rss the peak RSS of each invocation in kilobytes, or null if not sampled.
+     * @param wallTime the time it took to run all invocations in nanoseconds.
+     * @param exitCodes the number of invocations per exit status.
+     */
+    public LatencyReport(final long[] latencies, final long[] rss, final long wallTime,
+            final Map<Integer, AtomicLong> exitCodes) {
+        this(new Properties(), new TreeMap<>());
+        final long[] sortedLatencies = latencies.clone();
+        Arrays.sort(sortedLatencies);
+        metrics.setProperty(INVOCATIONS, Integer.toString(latencies.length));
+        metrics.setProperty(LATENCY_METRICS[0], toMillis(percentile(sortedLatencies, 0.5)));
+        metrics.setProperty(LATENCY_METRICS[1], toMillis(percentile(sortedLatencies, 0.99)));
+        metrics.setProperty(LATENCY_METRICS[2], toMillis(percentile(sortedLatencies, 0.999)));
+        final double wallTimeSeconds = wallTime / (double) TimeUnit.SECONDS.toNanos(1);
+        metrics.setProperty(THROUGHPUT, String.format(Locale.ROOT, "%.2f", latencies.length / wallTimeSeconds));
+        if (rss != null) {
+            final long[] sortedRss = rss.clone();
+            Arrays.sort(sortedRss);
+            metrics.setProperty(RSS_METRICS[0], toMegabytes(percentile(sortedRss, 0.5)));
+            metrics.setProperty(RSS_METRICS[1], toMegabytes(sortedRss[sortedRss.length - 1]));
+        }
+        exitCodes.forEach((exitCode, count) -> this.exitCodes.put(exitCode, count.get()));
+    }
+
+    /**
+     * Nearest-rank percentile of a sorted array.
+     */
+    private static long percentile(final long[] sorted, final double percentile) {
+        final int rank = (int) Math.ceil(percentile * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static String toMillis(final long nanos) {
+        return String.format(Locale.ROOT, "%.2f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    private static String toMegabytes(final long kilobytes) {
+        return String.format(Locale.ROOT, "%.1f", kilobytes / 1024.0);
+    }
+
+    public static LatencyReport load(final Path path) throws IOException {
+        final Properties properties = new Properties();
+        try (final InputStream in = Files.newInputStream(path)) {
+            properties.load(in);
+        }
+        final Properties metrics = new Properties();
+        final Map<Integer, Long> exitCodes = new TreeMap<>();
+        for (final String key : properties.stringPropertyNames()) {
+            try {
+                if (key.startsWith(EXIT_STATUS_PREFIX)) {
+                    exitCodes.put(Integer.parseInt(key.substring(EXIT_STATUS_PREFIX.length())),
+                            Long.parseLong(properties.getProperty(key)));
+                } else {
+                    metrics.setProperty(key, properties.getProperty(key));
+                }
+            } catch (final NumberFormatException e) {
+                throw new IOException(String.format("The baseline %s has an invalid entry %s.", path, key));
+            }
+        }
+        return new LatencyReport(metrics, exitCodes);
+    }
+
+    public void save(final Path path) throws IOException {
+        final Properties properties = new Properties();
+        properties.putAll(metrics);
+        exitCodes.forEach((exitCode, count) -> properties.setProperty(EXIT_STATUS_PREFIX + exitCode,
+                Long.toString(count)));
+        try (final OutputStream out = Files.newOutputStream(path)) {
+            properties.store(out, "cert-validator load replay baseline");
+        }
+    }
+
+    /**
+     * Compare this report to a baseline.
+     *
+     * @param baseline the baseline.
+     * @param tolerance the allowed regression as a fraction, e.g. 0.1 for 10%.
+     * @return a description of each metric which regressed more than allowed,
+     *         and of each exit status whose share of the invocations differs from
+     *         the baseline, since latencies of runs which took different paths
+     *         through the validator are not comparable.
+     */
+    public List<String> compareTo(final LatencyReport baseline, final double tolerance) {
+        final List<String> regressions = new ArrayList<>();
+        compareExitCodes(baseline, regressions);
+        for (final String metric : LATENCY_METRICS) {
+            checkUpperBound(baseline, metric, tolerance, regressions);
+        }
+        for (final String metric : RSS_METRICS) {
+            checkUpperBound(baseline, metric, tolerance, regressions);
+        }
+        if (metrics.containsKey(THROUGHPUT) && baseline.metrics.containsKey(THROUGHPUT)) {
+            final double current = Double.parseDouble(metrics.getProperty(THROUGHPUT));
+            final double expected = Double.parseDouble(baseline.metrics.getProperty(THROUGHPUT));
+            if (current < expected * (1 - tolerance)) {
+                regressions.add(
+                        String.format(Locale.ROOT, "%s is %.2f, baseline is %.2f", THROUGHPUT, current, expected));
+            }
+        }
+        return regressions;
+    }
+
+    private void compareExitCodes(final LatencyReport baseline, final List<String> regressions) {
+        final long invocations = Long.parseLong(metrics.getProperty(INVOCATIONS, "0"));
+        final long baselineInvocations = Long.parseLong(baseline.metrics.getProperty(INVOCATIONS, "0"));
+        final Set<Integer> allExitCodes = new TreeSet<>(exitCodes.keySet());
+        allExitCodes.addAll(baseline.exitCodes.keySet());
+        for (final Integer exitCode : allExitCodes) {
+            final long count = exitCodes.getOrDefault(exitCode, 0L);
+            final long baselineCount = baseline.exitCodes.getOrDefault(exitCode, 0L);
+            // Compare the shares of the invocations, so the number of iterations may differ
+            if (count * baselineInvocations != baselineCount * invocations) {
+                regressions.add(String.format(Locale.ROOT,
+                        "%s%d occurred in %d of %d invocations, baseline is %d of %d",
+                        EXIT_STATUS_PREFIX, exitCode, count, invocations, baselineCount, baselineInvocations));
+            }
+        }
+    }
+
+    private void checkUpperBound(final LatencyReport baseline, final String metric, final double tolerance,
+            final List<String> regressions) {
+        if (!metrics.containsKey(metric) || !baseline.metrics.containsKey(metric)) {
+            return;
+        }
+        final double current = Double.parseDouble(metrics.getProperty(metric));
+        final double expected = Double.parseDouble(baseline.metrics.getProperty(metric));
+        if (current > expected * (1 + tolerance)) {
+            regressions.add(String.format(Locale.ROOT, "%s is %.2f, baseline is %.2f", metric, current, expected));
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder();
+        new TreeMap<>(metrics).forEach((metric, value) -> result
+                .append(String.format("%-24s %s", metric, value))
+                .append(System.lineSeparator()));
+        exitCodes.forEach((exitCode, count) -> result
+                .append(String.format("%-24s %d", EXIT_STATUS_PREFIX + exitCode, count))
+                .append(System.lineSeparator()));
+        return result.toString();
+    }
+}
@@ -0,0 +1,327 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Replays a corpus of PEM-encoded certificates through cert-validator.jar, one
+ * process per certificate, and measures the latency as seen by EJBCA, i.e. the
+ * time from forking the JVM until the exit status is available.
+ * <p>
+ * Usage:
+ * <pre>
+ * LoadReplay --jar cert-validator.jar --corpus directory [options] -- type module...
+ *
+ * --jar file             The cert-validator jar to run.
+ * --corpus directory     Directory with one PEM-encoded certificate per file.
+ * --concurrency n        Number of concurrent invocations (default 1).
+ * --iterations n         Number of times to replay the corpus (default 1).
+ * --warmup n             Number of invocations to run before measuring (default 0).
+ * --java file            The java executable (default the one running this tool).
+ * --jvm-arg arg          Argument passed to the JVM, e.g. -Xshare:auto. Can be repeated.
+ * --save-baseline file   Save the results as a baseline.
+ * --baseline file        Compare the results to a baseline, exit with status 1 on a regression.
+ * --tolerance percent    Allowed regression compared to the baseline (default 10).
+ * </pre>
+ * On Linux, the peak resident set size of each invocation is sampled from
+ * <code>/proc/&lt;pid&gt;/status</code> while the process is running. The JVM is
+ * started directly, without a wrapper process, so the measured latency does not
+ * include the cost of an extra fork.
+ */
+public class LoadReplay {
+    private static final Path PROC = Paths.get("/proc/self/status");
+    private final List<String> command;
+    private final List<byte[]> corpus;
+    private final int concurrency;
+    private final int iterations;
+    private final int warmup;
+    private final RssSampler rssSampler;
+
+    public LoadReplay(final List<String> command, final List<byte[]> corpus, final int concurrency,
+            final int iterations, final int warmup, final RssSampler rssSampler) {
+        this.command = command;
+        this.corpus = corpus;
+        this.concurrency = concurrency;
+        this.iterations = iterations;
+        this.warmup = warmup;
+        this.rssSampler = rssSampler;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, List<String>> options = new HashMap<>();
+        final List<String> validatorArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--".equals(args[i])) {
+                validatorArgs.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                break;
+            }
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                usage(String.format("Unexpected argument '%s'.", args[i]));
+            }
+            options.computeIfAbsent(args[i].substring(2), key -> new ArrayList<>()).add(args[++i]);
+        }
+        if (!options.containsKey("jar") || !options.containsKey("corpus") || validatorArgs.isEmpty()) {
+            usage("The options --jar and --corpus and the arguments to cert-validator are required.");
+        }
+
+        final int concurrency = Integer.parseInt(option(options, "concurrency", "1"));
+        if (concurrency < 1) {
+            usage("The concurrency must be at least 1.");
+        }
+        final int iterations = Integer.parseInt(option(options, "iterations", "1"));
+        if (iterations < 1) {
+            usage("The number of iterations must be at least 1.");
+        }
+
+        final boolean sampleRss = Files.isReadable(PROC);
+        final List<String> command = new ArrayList<>();
+        command.add(option(options, "java", Paths.get(System.getProperty("java.home"), "bin", "java").toString()));
+        command.addAll(options.getOrDefault("jvm-arg", new ArrayList<>()));
+        command.add("-jar");
+        command.add(option(options, "jar", null));
+        command.addAll(validatorArgs);
+
+        final List<byte[]> corpus = new ArrayList<>();
+        try (final Stream<Path> files = Files.list(Paths.get(option(options, "corpus", null)))) {
+            for (final Path file : files.sorted().collect(Collectors.toList())) {
+                corpus.add(Files.readAllBytes(file));
+            }
+        }
+        if (corpus.isEmpty()) {
+            usage("The corpus is empty.");
+        }
+
+        final LoadReplay loadReplay = new LoadReplay(command, corpus, concurrency, iterations,
+                Integer.parseInt(option(options, "warmup", "0")),
+                sampleRss ? new RssSampler() : null);
+        final LatencyReport report = loadReplay.run();
+        System.out.println(report);
+
+        if (options.containsKey("save-baseline")) {
+            report.save(Paths.get(option(options, "save-baseline", null)));
+        }
+        if (options.containsKey("baseline")) {
+            final LatencyReport baseline = LatencyReport.load(Paths.get(option(options, "baseline", null)));
+            final List<String> regressions = report.compareTo(baseline,
+                    Double.parseDouble(option(options, "tolerance", "10")) / 100);
+            if (!regressions.isEmpty()) {
+                regressions.forEach(regression -> System.out.println("REGRESSION " + regression));
+                System.exit(1);
+            }
+            System.out.println("No regressions compared to the baseline.");
+        }
+    }
+
+    private static String option(final Map<String, List<String>> options, final String name,
+            final String defaultValue) {
+        final List<String> values = options.get(name);
+        return values == null ? defaultValue : values.get(values.size() - 1);
+    }
+
+    private static void usage(final String message) {
+        System.err.println(message);
+        System.err.println("Usage: LoadReplay --jar cert-validator.jar --corpus directory [--concurrency n]"
+                + " [--iterations n] [--warmup n] [--java file] [--jvm-arg arg]... [--save-baseline file]"
+                + " [--baseline file] [--tolerance percent] -- type module...");
+        System.exit(2);
+    }
+
+    public LatencyReport run() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        if (rssSampler != null) {
+            rssSampler.start();
+        }
+        try {
+            final AtomicInteger next = new AtomicInteger();
+            runInvocations(executor, warmup, next, null, null, null);
+            final int invocations = corpus.size() * iterations;
+            final long[] latencies = new long[invocations];
+            final long[] rss = new long[invocations];
+            final Map<Integer, AtomicLong> exitCodes = new ConcurrentHashMap<>();
+            final long start = System.nanoTime();
+            runInvocations(executor, invocations, new AtomicInteger(), latencies, rss, exitCodes);
+            final long wallTime = System.nanoTime() - start;
+            return new LatencyReport(latencies, rssSampler != null ? rss : null, wallTime, exitCodes);
+        } finally {
+            executor.shutdownNow();
+            if (rssSampler != null) {
+                rssSampler.interrupt();
+            }
+        }
+    }
+
+    private void runInvocations(final ExecutorService executor, final int invocations, final AtomicInteger next,
+            final long[] latencies, final long[] rss, final Map<Integer, AtomicLong> exitCodes) throws Exception {
+        final List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            workers.add(executor.submit(() -> {
+                for (int invocation = next.getAndIncrement(); invocation < invocations;
+                        invocation = next.getAndIncrement()) {
+                    final Invocation result = invoke(corpus.get(invocation % corpus.size()));
+                    if (latencies != null) {
+                        latencies[invocation] = result.latency;
+                        rss[invocation] = result.rss;
+                        exitCodes.computeIfAbsent(result.exitCode, exitCode -> new AtomicLong()).incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        for (final Future<?> worker : workers) {
+            worker.get();
+        }
+    }
+
+    private Invocation invoke(final byte[] certificate) throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        final Process process = new ProcessBuilder(command)
+                .redirectOutput(new File(File.separatorChar == '\\' ? "NUL" : "/dev/null"))
+                .start();
+        try (final OutputStream stdin = process.getOutputStream()) {
+            stdin.write(certificate);
+        } catch (final IOException e) {
+            // The validator exited without reading the certificate, the exit status tells why
+        }
+        final long pid = rssSampler != null ? pid(process) : -1;
+        if (pid >= 0) {
+            rssSampler.register(pid);
+        }
+        try (final InputStream stderr = process.getErrorStream()) {
+            final byte[] buffer = new byte[4096];
+            while (stderr.read(buffer) >= 0) {
+                // Drain stderr so the validator never blocks on a full pipe
+            }
+        }
+        final int exitCode = process.waitFor();
+        final long latency = System.nanoTime() - start;
+        final long rss = pid >= 0 ? rssSampler.unregister(pid) : 0;
+        return new Invocation(latency, exitCode, rss);
+    }
+
+    /**
+     * Get the pid of a process using Process.pid() on Java 9 and later, or the pid
+     * field of the UNIX process implementation on Java 8.
+     *
+     * @return the pid, or -1 if it is not available.
+     */
+    private static long pid(final Process process) {
+        try {
+            return (Long) Process.class.getMethod("pid").invoke(process);
+        } catch (final NoSuchMethodException e) {
+            try {
+                final Field pid = process.getClass().getDeclaredField("pid");
+                pid.setAccessible(true);
+                return pid.getInt(process);
+            } catch (final ReflectiveOperationException | RuntimeException e1) {
+                return -1;
+            }
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static class Invocation {
+        private final long latency;
+        private final int exitCode;
+        private final long rss;
+
+        private Invocation(final long latency, final int exitCode, final long rss) {
+            this.latency = latency;
+            this.exitCode = exitCode;
+            this.rss = rss;
+        }
+    }
+
+    /**
+     * Samples the peak resident set size (VmHWM) of running processes every few
+     * milliseconds. Since VmHWM is a high-water mark, the last sample taken before
+     * the process exits is a close approximation of its peak RSS.
+     */
+    static class RssSampler extends Thread {
+        private static final long SAMPLE_INTERVAL_MILLIS = 5;
+        private final Map<Long, AtomicLong> peakRssKb = new ConcurrentHashMap<>();
+
+        RssSampler() {
+            super("rss-sampler");
+            setDaemon(true);
+        }
+
+        void register(final long pid) {
+            peakRssKb.put(pid, new AtomicLong());
+            sample(pid);
+        }
+
+        long unregister(final long pid) {
+            return peakRssKb.remove(pid).get();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!isInterrupted()) {
+                    peakRssKb.keySet().forEach(this::sample);
+                    TimeUnit.MILLISECONDS.sleep(SAMPLE_INTERVAL_MILLIS);
+                }
+            } catch (final InterruptedException e) {
+                // Done sampling
+            }
+        }
+
+        private void sample(final long pid) {
+            try {
+                for (final String line : Files.readAllLines(Paths.get("/proc", Long.toString(pid), "status"))) {
+                    if (line.startsWith("VmHWM:")) {
+                        final long kb = Long.parseLong(line.replaceAll("[^0-9]", ""));
+                        final AtomicLong peak = peakRssKb.get(pid);
+                        if (peak != null) {
+                            peak.accumulateAndGet(kb, Math::max);
+                        }
+                    }
+                }
+            } catch (final IOException | NumberFormatException e) {
+                // The process has already exited
+            }
+        }
+    }
+}
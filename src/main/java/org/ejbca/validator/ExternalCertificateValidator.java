@@ -21,18 +21,27 @@
 
 package org.ejbca.validator;
 
-import java.math.BigInteger;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.ejbca.validator.audit.AuditLog;
+import org.ejbca.validator.audit.AuditRecord;
+import org.ejbca.validator.audit.ModuleVerdict;
+import org.ejbca.validator.audit.ModuleVerdict.Verdict;
 import org.ejbca.validator.exception.CertificateExtractionException;
+import org.ejbca.validator.exception.DeadlineExceededException;
 import org.ejbca.validator.exception.ModuleCreationException;
 import org.ejbca.validator.extraction.X509CertificateDataExtractor;
+import org.ejbca.validator.module.Deadline;
 import org.ejbca.validator.module.ModuleExecutor;
 import org.ejbca.validator.module.ValidatorModuleFactory;
 
@@ -48,11 +57,17 @@ import org.ejbca.validator.module.ValidatorModuleFactory;
  */
 public class ExternalCertificateValidator {
     private static final Logger log = LogManager.getLogger();
+    private static final String DEADLINE_OPTION = "--deadline=";
     private final List<ModuleExecutor> moduleExecutors;
 
     public static void main(final String[] args) {
         log.info("Starting External Certificate Validator");
-        final List<String> argsList = Arrays.asList(args);
+        final Deadline deadline = parseDeadline(Arrays.stream(args)
+                .filter(arg -> arg.startsWith(DEADLINE_OPTION))
+                .collect(Collectors.toList()));
+        final List<String> argsList = Arrays.stream(args)
+                .filter(arg -> !arg.startsWith(DEADLINE_OPTION))
+                .collect(Collectors.toList());
 
         if (argsList.isEmpty()) {
             new YamlHelpPrinter().printSupportedTypes();
@@ -66,38 +81,135 @@ public class ExternalCertificateValidator {
         }
 
         if ("x509".equals(type)) {
-            validateX509Certificate(argsList.stream().skip(1).collect(Collectors.toList()));
+            validateX509Certificate(argsList.stream().skip(1).collect(Collectors.toList()), deadline);
         } else {
             log.error("Requested validation of unsupported certificate type {}.", type);
             System.exit(1);
         }
     }
 
-    private static void validateX509Certificate(final List<String> argsList) {
+    /**
+     * Parse the overall deadline of the validation, given as --deadline=milliseconds
+     * on the command line. The deadline should be somewhat lower than the timeout of
+     * the external command configured in EJBCA, so that the validator has time to
+     * report which module was too slow.
+     */
+    private static Deadline parseDeadline(final List<String> deadlineOptions) {
+        if (deadlineOptions.isEmpty()) {
+            return Deadline.none();
+        }
+        final String deadlineOption = deadlineOptions.get(deadlineOptions.size() - 1);
         try {
-            final X509Certificate certificate = new CertificateLoader().loadX509CertificateFromPem();
-            final BigInteger serialNumber = certificate.getSerialNumber();
-            log.info("Loaded certificate with serial number {}", serialNumber);
-            final ValidatorModuleFactory validatorModuleFactory = new ValidatorModuleFactory(
-                    new X509CertificateDataExtractor(certificate));
-            final List<ModuleExecutor> moduleExecutors = validatorModuleFactory.fromCommandLine(argsList);
-            final boolean validationOk = new ExternalCertificateValidator(moduleExecutors).run();
-            if (!validationOk) {
-                log.info("Certificate with serial number {} failed validation.", serialNumber.toString(16));
-                System.exit(100);
-            } else {
-                log.info("Certificate with serial number {} passed validation.", serialNumber.toString(16));
-                System.exit(0);
+            final long millis = Long.parseLong(deadlineOption.substring(DEADLINE_OPTION.length()));
+            if (millis > 0) {
+                return Deadline.after(millis);
             }
+        } catch (final NumberFormatException e) {
+            // Fall through
+        }
+        log.error("Malformed option '{}'. The deadline must be a positive number of milliseconds.", deadlineOption);
+        System.exit(1);
+        return null;
+    }
+
+    private static void validateX509Certificate(final List<String> argsList, final Deadline deadline) {
+        final AuditLog auditLog = openAuditLog();
+        final List<ModuleVerdict> moduleVerdicts = new ArrayList<>();
+        X509Certificate certificate = null;
+        int exitStatus;
+        try {
+            certificate = new CertificateLoader().loadX509CertificateFromPem();
+            log.info("Loaded certificate with serial number {}", certificate.getSerialNumber());
+            exitStatus = validate(certificate,
+                    extractor -> new ValidatorModuleFactory(extractor).fromCommandLine(argsList), deadline,
+                    moduleVerdicts);
         } catch (final CertificateException e) {
             log.error(e.getMessage());
-            System.exit(2);
+            exitStatus = 2;
+        } catch (final RuntimeException e) {
+            log.error("Unexpected error while loading the certificate.", e);
+            exitStatus = 7;
+        }
+        if (auditLog != null) {
+            try {
+                auditLog.append(AuditRecord.of(certificate, argsList, exitStatus, moduleVerdicts));
+                auditLog.close();
+            } catch (final IOException e) {
+                log.error(e.getMessage());
+                exitStatus = 6;
+            }
+        }
+        System.exit(exitStatus);
+    }
+
+    /**
+     * Validate a certificate and determine the exit status of the validation:
+     * <ul>
+     * <li>0 The certificate passed validation.</li>
+     * <li>2 The certificate could not be encoded.</li>
+     * <li>3 A module could not be created.</li>
+     * <li>4 Data could not be extracted from the certificate.</li>
+     * <li>5 The deadline or the time budget of a module was exceeded.</li>
+     * <li>7 An unexpected error occurred, e.g. a bug in a module.</li>
+     * <li>100 The certificate failed validation.</li>
+     * </ul>
+     * The command line validator also exits with status 1 on a usage error, and
+     * with status 6 if the audit log could not be written.
+     *
+     * @param certificate the certificate to validate.
+     * @param moduleExecutorsFactory creates the modules for the certificate.
+     * @param deadline the deadline of the validation.
+     * @param moduleVerdicts a list which receives the verdict and execution time
+     *        of each module which was executed.
+     * @return the exit status.
+     */
+    public static int validate(final X509Certificate certificate,
+            final Function<X509CertificateDataExtractor, List<ModuleExecutor>> moduleExecutorsFactory,
+            final Deadline deadline, final List<ModuleVerdict> moduleVerdicts) {
+        final String serialNumber = certificate.getSerialNumber().toString(16);
+        try {
+            final List<ModuleExecutor> moduleExecutors = moduleExecutorsFactory
+                    .apply(new X509CertificateDataExtractor(certificate));
+            if (!new ExternalCertificateValidator(moduleExecutors).run(deadline, moduleVerdicts)) {
+                log.info("Certificate with serial number {} failed validation.", serialNumber);
+                return 100;
+            }
+            log.info("Certificate with serial number {} passed validation.", serialNumber);
+            return 0;
+        } catch (final CertificateException e) {
+            log.error(e.getMessage());
+            return 2;
         } catch (final ModuleCreationException e) {
             log.error(e.getMessage());
-            System.exit(3);
+            return 3;
         } catch (final CertificateExtractionException e) {
             log.error(e.getMessage());
-            System.exit(4);
+            return 4;
+        } catch (final DeadlineExceededException e) {
+            log.error(e.getMessage());
+            return 5;
+        } catch (final RuntimeException e) {
+            log.error(String.format("Unexpected error while validating the certificate with serial number %s.",
+                    serialNumber), e);
+            return 7;
+        }
+    }
+
+    /**
+     * Open the audit log given by the system property
+     * {@value AuditLog#AUDIT_LOG_PROPERTY}, if set.
+     */
+    private static AuditLog openAuditLog() {
+        final String auditLogPath = System.getProperty(AuditLog.AUDIT_LOG_PROPERTY);
+        if (auditLogPath == null) {
+            return null;
+        }
+        try {
+            return AuditLog.open(Paths.get(auditLogPath));
+        } catch (final IOException e) {
+            log.error("Could not open the audit log {}. {}", auditLogPath, e.getMessage());
+            System.exit(6);
+            return null;
         }
     }
 
@@ -105,9 +217,39 @@ public class ExternalCertificateValidator {
         this.moduleExecutors = moduleExecutors;
     }
 
-    public boolean run() {
-        return moduleExecutors.stream()
-                .map(moduleExecutor -> moduleExecutor.execute())
-                .allMatch(result -> result == true);
+    public boolean run(final Deadline deadline) {
+        return run(deadline, new ArrayList<>());
+    }
+
+    /**
+     * Execute the modules in order until the first failure.
+     *
+     * @param deadline the deadline of the validation.
+     * @param moduleVerdicts a list which receives the verdict and execution time
+     *        of each module which was executed.
+     * @return true if all modules passed.
+     */
+    public boolean run(final Deadline deadline, final List<ModuleVerdict> moduleVerdicts) {
+        for (final ModuleExecutor moduleExecutor : moduleExecutors) {
+            final long start = System.nanoTime();
+            final boolean result;
+            try {
+                result = moduleExecutor.execute(deadline);
+            } catch (final DeadlineExceededException e) {
+                moduleVerdicts.add(new ModuleVerdict(moduleExecutor.getModuleName(), Verdict.DEADLINE_EXCEEDED,
+                        System.nanoTime() - start));
+                throw e;
+            } catch (final RuntimeException e) {
+                moduleVerdicts.add(new ModuleVerdict(moduleExecutor.getModuleName(), Verdict.ERROR,
+                        System.nanoTime() - start));
+                throw e;
+            }
+            moduleVerdicts.add(new ModuleVerdict(moduleExecutor.getModuleName(),
+                    result ? Verdict.PASS : Verdict.FAIL, System.nanoTime() - start));
+            if (!result) {
+                return false;
+            }
+        }
+        return true;
     }
 }
@@ -40,14 +40,35 @@ public class YamlHelpPrinter {
             map.put("supported", "true");
             map.put("recognizedType", "X.509");
             map.put("supportedModules", ImmutableList.builder()
+                    .add(ImmutableMap.of(
+                            "moduleName", "caaPermits",
+                            "description", "Checks that the DNS CAA records of the hostname permit the CA to issue"))
                     .add(ImmutableMap.of(
                             "moduleName", "isHostname",
                             "description", "Checks if the data is a valid hostname"))
+                    .add(ImmutableMap.of(
+                            "moduleName", "notCompromisedKey",
+                            "description", "Checks that the public key is not in a list of compromised keys"))
+                    .add(ImmutableMap.of(
+                            "moduleName", "notConfusable",
+                            "description", "Checks that the data is not a mixed-script or confusable hostname"))
+                    .add(ImmutableMap.of(
+                            "moduleName", "notReusedKey",
+                            "description", "Checks that the public key has not been used with another subject"))
                     .build());
             map.put("supportedParts", ImmutableList.builder()
                     .add(ImmutableMap.of(
                             "partOfCertificate", "CN",
                             "description", "The Common Name of the certificate"))
+                    .add(ImmutableMap.of(
+                            "partOfCertificate", "DN",
+                            "description", "The subject Distinguished Name of the certificate"))
+                    .add(ImmutableMap.of(
+                            "partOfCertificate", "SPKI",
+                            "description", "The SHA-256 hash of the public key of the certificate"))
+                    .add(ImmutableMap.of(
+                            "partOfCertificate", "DNS",
+                            "description", "The dNSName entries of the Subject Alternative Name extension"))
                     .build());
             map.put("helpLink", helpLink);
             System.out.println(yaml.dump(map));
@@ -0,0 +1,267 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.audit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.Strings;
+
+/**
+ * A tamper-evident audit log of validation decisions, written as JSON lines,
+ * see {@link AuditRecord}. Each record contains the hash of the previous record,
+ * so that modifying, inserting or removing a record breaks the hash chain, which
+ * is verified by {@link AuditLogVerifier}. The first record is chained to a hash
+ * of all zeros.
+ * <p>
+ * Validations never wait for the disk. Records are put in a lock-free ring
+ * buffer and written by a background thread, which writes all records available
+ * in a single batch followed by a single fsync (group commit). Only if the ring
+ * buffer is full does {@link #append(AuditRecord)} wait for the writer to catch
+ * up, since dropping records would defeat the purpose of the log.
+ * <p>
+ * Several processes may append to the same file. Each batch is written while
+ * holding an exclusive lock on the file, after reading the hash of the last
+ * record written by any process.
+ * <p>
+ * If a batch cannot be written, or the writer thread dies, the audit log is
+ * marked as failed and no more records are written. Every subsequent call to
+ * {@link #append(AuditRecord)} or {@link #close()} throws an exception instead
+ * of silently queueing records which will never be written.
+ * <p>
+ * {@link #close()} waits for every call to {@link #append(AuditRecord)} already
+ * in progress, so a record is either written before the file is closed, or the
+ * call appending it throws an exception.
+ */
+public class AuditLog implements Closeable {
+    private static final Logger log = LogManager.getLogger(AuditLog.class);
+    public static final String AUDIT_LOG_PROPERTY = "org.ejbca.validator.auditLog";
+    static final String GENESIS_HASH = Strings.repeat("0", 64);
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long FULL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private final Path path;
+    private final FileChannel channel;
+    private final AtomicReferenceArray<AuditRecord> ring;
+    private final int mask;
+    /** The next slot to be claimed by a producer. */
+    private final AtomicLong tail = new AtomicLong();
+    /** The next slot to be taken by the writer, only updated by the writer. */
+    private volatile long head;
+    private volatile boolean closed;
+    /** The number of producers which have passed the check for {@link #closed} but not yet stored a record. */
+    private final AtomicInteger appending = new AtomicInteger();
+    /** Set if a batch could not be written or the writer thread died, after which no more records are written. */
+    private volatile Throwable failure;
+    private final Thread writer;
+
+    private AuditLog(final Path path, final int capacity) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.writer = new Thread(this::writeRecords, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static AuditLog open(final Path path) throws IOException {
+        return new AuditLog(path, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Queue a record to be written. Returns as soon as the record is in the ring
+     * buffer, which is safe to call from any number of threads.
+     *
+     * @throws IOException if the writer has failed, so the record would never be
+     *         written.
+     */
+    public void append(final AuditRecord record) throws IOException {
+        // Announce the record before checking if the log is closed, so the writer does not stop before it is stored
+        appending.incrementAndGet();
+        try {
+            if (closed) {
+                throw new IllegalStateException("The audit log has been closed.");
+            }
+            for (;;) {
+                checkNotFailed();
+                final long slot = tail.get();
+                if (slot - head >= ring.length()) {
+                    LockSupport.unpark(writer);
+                    LockSupport.parkNanos(this, FULL_NANOS);
+                    continue;
+                }
+                if (tail.compareAndSet(slot, slot + 1)) {
+                    ring.set((int) slot & mask, record);
+                    break;
+                }
+            }
+            // The writer may have failed after the check above, in which case the record is never written
+            checkNotFailed();
+        } finally {
+            appending.decrementAndGet();
+        }
+        LockSupport.unpark(writer);
+    }
+
+    private void checkNotFailed() throws IOException {
+        final Throwable failure = this.failure;
+        if (failure != null) {
+            throw new IOException(String.format("The writer of the audit log %s has failed. %s", path, failure),
+                    failure);
+        }
+    }
+
+    private void writeRecords() {
+        try {
+            writeRecordsUntilClosed();
+        } catch (final Throwable t) {
+            failure = t;
+            log.error("The writer of the audit log {} has failed, no more records will be written. {}", path, t);
+        }
+    }
+
+    private void writeRecordsUntilClosed() throws IOException {
+        final List<AuditRecord> batch = new ArrayList<>();
+        for (;;) {
+            for (long next = head; batch.size() < MAX_BATCH_SIZE; next++) {
+                // A null slot is either empty, or claimed by a producer which has not stored its record yet
+                final AuditRecord record = ring.get((int) next & mask);
+                if (record == null) {
+                    break;
+                }
+                ring.set((int) next & mask, null);
+                head = next + 1;
+                batch.add(record);
+            }
+            if (!batch.isEmpty()) {
+                // Stop at the first batch which cannot be written. Writing the next batch would leave a gap which
+                // the hash chain cannot reveal, since it is chained to the last record in the file.
+                writeBatch(batch);
+                batch.clear();
+                continue;
+            }
+            // Read the producers before the tail, a producer which is not counted has either stored its record
+            // or will see that the log is closed
+            if (closed && appending.get() == 0 && tail.get() == head) {
+                return;
+            }
+            LockSupport.parkNanos(this, IDLE_NANOS);
+        }
+    }
+
+    private void writeBatch(final List<AuditRecord> batch) throws IOException {
+        final FileLock lock = channel.lock();
+        try {
+            String previousHash = readLastHash();
+            final StringBuilder lines = new StringBuilder();
+            for (final AuditRecord record : batch) {
+                final String line = record.toJson(previousHash);
+                previousHash = line.substring(line.length() - 66, line.length() - 2);
+                lines.append(line).append('\n');
+            }
+            final ByteBuffer buffer = StandardCharsets.UTF_8.encode(lines.toString());
+            long position = channel.size();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            channel.force(false);
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Read the hash of the last record in the file. If the file ends with an
+     * incomplete record, because a process crashed while writing it, the
+     * incomplete record is removed.
+     */
+    private String readLastHash() throws IOException {
+        final long size = channel.size();
+        if (size == 0) {
+            return GENESIS_HASH;
+        }
+        for (int length = (int) Math.min(size, 4096);; length = (int) Math.min(size, 2L * length)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining() && channel.read(buffer, size - length + buffer.position()) >= 0) {
+                // Read the tail of the file
+            }
+            final String tail = new String(buffer.array(), StandardCharsets.UTF_8);
+            if (!tail.endsWith("\n")) {
+                final int lastNewline = tail.lastIndexOf('\n');
+                if (lastNewline < 0 && length < size) {
+                    continue;
+                }
+                final long truncatedSize = lastNewline < 0 ? 0 : size - length + lastNewline + 1;
+                log.warn("Removing an incomplete record at the end of the audit log {}.", path);
+                channel.truncate(truncatedSize);
+                return readLastHash();
+            }
+            final int start = tail.lastIndexOf('\n', tail.length() - 2) + 1;
+            if (start == 0 && length < size) {
+                continue;
+            }
+            final String lastLine = tail.substring(start, tail.length() - 1);
+            final int hashField = lastLine.lastIndexOf(AuditRecord.HASH_FIELD);
+            if (hashField < 0 || lastLine.length() != hashField + AuditRecord.HASH_FIELD.length() + 66) {
+                throw new IOException(String.format("The last record of the audit log %s is malformed.", path));
+            }
+            return lastLine.substring(hashField + AuditRecord.HASH_FIELD.length(), lastLine.length() - 2);
+        }
+    }
+
+    /**
+     * Write all queued records and close the file.
+     *
+     * @throws IOException if any record could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        checkNotFailed();
+    }
+}
@@ -0,0 +1,94 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.audit;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Offline tool which verifies the hash chain of an {@link AuditLog}. The tool
+ * prints the number of records and the hash of the last record, which can be
+ * stored elsewhere, e.g. in a ticket or a signed message, to detect if records
+ * are later removed from the end of the log. The exit status is 2 if the hash
+ * chain is broken.
+ * <p>
+ * Usage:
+ * <pre>
+ * java -cp cert-validator.jar org.ejbca.validator.audit.AuditLogVerifier audit.log
+ * </pre>
+ */
+public class AuditLogVerifier {
+    private static final Logger log = LogManager.getLogger();
+    private long records;
+    private String lastHash = AuditLog.GENESIS_HASH;
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 1) {
+            log.error("Usage: AuditLogVerifier file");
+            System.exit(1);
+        }
+        final AuditLogVerifier verifier = new AuditLogVerifier();
+        final Path path = Paths.get(args[0]);
+        try (final BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                final String error = verifier.verify(line);
+                if (error != null) {
+                    log.error("The hash chain of {} is broken at line {}. {}", path, verifier.records + 1, error);
+                    System.exit(2);
+                }
+            }
+        }
+        log.info("Verified {} records in {}. The hash of the last record is {}.", verifier.records, path,
+                verifier.lastHash);
+    }
+
+    /**
+     * Verify the next record in the chain.
+     *
+     * @param line the record.
+     * @return a description of the problem, or null if the record is valid.
+     */
+    String verify(final String line) {
+        final int hashField = line.lastIndexOf(AuditRecord.HASH_FIELD);
+        if (hashField < 0 || !line.endsWith("\"}")) {
+            return "The record has no hash.";
+        }
+        final String chainedJson = line.substring(0, hashField);
+        final String hash = line.substring(hashField + AuditRecord.HASH_FIELD.length(), line.length() - 2);
+        if (!chainedJson.endsWith(",\"prev\":\"" + lastHash + "\"")) {
+            return "The record is not chained to the previous record.";
+        }
+        if (!AuditRecord.hash(chainedJson).equals(hash)) {
+            return "The hash of the record does not match its content.";
+        }
+        records++;
+        lastHash = hash;
+        return null;
+    }
+}
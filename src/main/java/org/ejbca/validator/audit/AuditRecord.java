@@ -0,0 +1,155 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.audit;
+
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * The decision made for a certificate. A record is written to the audit log as
+ * a single line of JSON with the fields in a fixed order:
+ * <pre>
+ * {"time":"2018-06-01T12:00:00.123Z","serial":"1a2b","fingerprint":"...","plan":"...","status":0,
+ *  "modules":[{"module":"+isHostname","verdict":"pass","micros":412}],"prev":"...","hash":"..."}
+ * </pre>
+ * <ul>
+ * <li><code>fingerprint</code> The SHA-256 hash of the DER-encoded certificate.</li>
+ * <li><code>plan</code> The SHA-256 hash of the module specifications, one per line.</li>
+ * <li><code>status</code> The exit status of the validation.</li>
+ * <li><code>modules</code> The verdict and execution time of each module which was run.</li>
+ * <li><code>prev</code> The hash of the previous record, see {@link AuditLog}.</li>
+ * <li><code>hash</code> The SHA-256 hash of the line up to, but not including,
+ * <code>,"hash":</code>.</li>
+ * </ul>
+ */
+public class AuditRecord {
+    static final String HASH_FIELD = ",\"hash\":\"";
+    private final long time;
+    private final String serialNumber;
+    private final String fingerprint;
+    private final String planHash;
+    private final int status;
+    private final List<ModuleVerdict> moduleVerdicts;
+
+    /**
+     * @param serialNumber the hex-encoded serial number of the certificate.
+     * @param fingerprint the hex-encoded SHA-256 hash of the certificate.
+     * @param planHash the hash of the plan, see {@link #planHash(List)}.
+     * @param status the exit status of the validation.
+     * @param moduleVerdicts the verdict of each module which was run.
+     */
+    public AuditRecord(final String serialNumber, final String fingerprint, final String planHash, final int status,
+            final List<ModuleVerdict> moduleVerdicts) {
+        this.time = System.currentTimeMillis();
+        this.serialNumber = serialNumber;
+        this.fingerprint = fingerprint;
+        this.planHash = planHash;
+        this.status = status;
+        this.moduleVerdicts = moduleVerdicts;
+    }
+
+    /**
+     * Create the record of a validation of a certificate.
+     *
+     * @param certificate the certificate, or null if it could not be loaded.
+     * @param plan the module specifications.
+     * @param status the exit status of the validation.
+     * @param moduleVerdicts the verdict of each module which was run.
+     */
+    public static AuditRecord of(final X509Certificate certificate, final List<String> plan, final int status,
+            final List<ModuleVerdict> moduleVerdicts) {
+        String serialNumber = null;
+        String fingerprint = null;
+        if (certificate != null) {
+            serialNumber = certificate.getSerialNumber().toString(16);
+            try {
+                fingerprint = Hashing.sha256().hashBytes(certificate.getEncoded()).toString();
+            } catch (final CertificateEncodingException e) {
+                // The certificate could not be validated either, the exit status says why
+            }
+        }
+        return new AuditRecord(serialNumber, fingerprint, planHash(plan), status, moduleVerdicts);
+    }
+
+    /**
+     * Compute the hash of a plan, i.e. a list of module specifications.
+     */
+    public static String planHash(final List<String> plan) {
+        return Hashing.sha256().hashString(String.join("\n", plan), StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Encode the record as a line of JSON, chained to the previous record.
+     *
+     * @param previousHash the hash of the previous record.
+     * @return the line, without line terminator.
+     */
+    String toJson(final String previousHash) {
+        final StringBuilder json = new StringBuilder(256);
+        json.append("{\"time\":\"").append(Instant.ofEpochMilli(time)).append('"');
+        json.append(",\"serial\":").append(quote(serialNumber));
+        json.append(",\"fingerprint\":").append(quote(fingerprint));
+        json.append(",\"plan\":").append(quote(planHash));
+        json.append(",\"status\":").append(status);
+        json.append(",\"modules\":[");
+        for (int i = 0; i < moduleVerdicts.size(); i++) {
+            final ModuleVerdict moduleVerdict = moduleVerdicts.get(i);
+            json.append(i == 0 ? "{" : ",{");
+            json.append("\"module\":").append(quote(moduleVerdict.getModuleName()));
+            json.append(",\"verdict\":\"").append(moduleVerdict.getVerdict().name().toLowerCase(Locale.ROOT));
+            json.append("\",\"micros\":").append(TimeUnit.NANOSECONDS.toMicros(moduleVerdict.getElapsedNanos()));
+            json.append('}');
+        }
+        json.append("],\"prev\":\"").append(previousHash).append('"');
+        final String hash = hash(json);
+        return json.append(HASH_FIELD).append(hash).append("\"}").toString();
+    }
+
+    static String hash(final CharSequence chainedJson) {
+        return Hashing.sha256().hashString(chainedJson, StandardCharsets.UTF_8).toString();
+    }
+
+    private static String quote(final String value) {
+        if (value == null) {
+            return "null";
+        }
+        final StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
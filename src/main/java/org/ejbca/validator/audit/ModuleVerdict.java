@@ -0,0 +1,53 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.audit;
+
+/**
+ * The verdict of a single module, and how long the module took to execute.
+ */
+public class ModuleVerdict {
+    public enum Verdict {
+        PASS, FAIL, DEADLINE_EXCEEDED, ERROR
+    }
+
+    private final String moduleName;
+    private final Verdict verdict;
+    private final long elapsedNanos;
+
+    public ModuleVerdict(final String moduleName, final Verdict verdict, final long elapsedNanos) {
+        this.moduleName = moduleName;
+        this.verdict = verdict;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public String getModuleName() {
+        return moduleName;
+    }
+
+    public Verdict getVerdict() {
+        return verdict;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+}
@@ -0,0 +1,134 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.confusables;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Offline tool which compiles the confusables data from Unicode Technical Standard
+ * #39 and a list of protected brands into the resources read by
+ * {@link ConfusablesTable} and {@link ProtectedSkeletons}.
+ * <p>
+ * The confusables data uses the format of <code>confusables.txt</code>, i.e. one
+ * mapping per line on the form <code>source ; target ; type # comment</code>. The
+ * brands file contains one DNS label per line, e.g. <code>paypal</code>. Empty
+ * lines and lines starting with # are ignored in both files.
+ * <p>
+ * Usage:
+ * <pre>
+ * java -cp cert-validator.jar org.ejbca.validator.confusables.ConfusablesCompiler confusables.txt brands.txt outputDirectory
+ * </pre>
+ */
+public class ConfusablesCompiler {
+    private static final Logger log = LogManager.getLogger();
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 3) {
+            log.error("Usage: ConfusablesCompiler confusables.txt brands.txt outputDirectory");
+            System.exit(1);
+        }
+        final ConfusablesTable confusablesTable = compileConfusables(Paths.get(args[0]));
+        final ProtectedSkeletons protectedSkeletons = compileBrands(confusablesTable, Paths.get(args[1]));
+        final Path outputDirectory = Paths.get(args[2]);
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(outputDirectory.resolve(ConfusablesTable.RESOURCE.substring(1)))))) {
+            confusablesTable.write(out);
+        }
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(outputDirectory.resolve(ProtectedSkeletons.RESOURCE.substring(1)))))) {
+            protectedSkeletons.write(out);
+        }
+    }
+
+    private static ConfusablesTable compileConfusables(final Path confusables) throws IOException {
+        final TreeMap<Integer, int[]> mappings = new TreeMap<>();
+        for (final String line : Files.readAllLines(confusables, StandardCharsets.UTF_8)) {
+            final String data = stripComment(line);
+            if (data.isEmpty()) {
+                continue;
+            }
+            final String[] fields = data.split(";");
+            if (fields.length < 2) {
+                throw new IOException(String.format("Malformed confusables mapping '%s'.", line));
+            }
+            final int source = Integer.parseInt(fields[0].trim(), 16);
+            final StringBuilder target = new StringBuilder();
+            for (final String codePoint : fields[1].trim().split("\\s+")) {
+                target.appendCodePoint(Integer.parseInt(codePoint, 16));
+            }
+            mappings.put(source, Normalizer.normalize(target, Normalizer.Form.NFD).codePoints().toArray());
+        }
+        final int[] sources = new int[mappings.size()];
+        final int[] offsets = new int[mappings.size() + 1];
+        final List<Integer> targets = new ArrayList<>();
+        int i = 0;
+        for (final Integer source : mappings.keySet()) {
+            sources[i] = source;
+            offsets[i] = targets.size();
+            for (final int target : mappings.get(source)) {
+                targets.add(target);
+            }
+            i++;
+        }
+        offsets[i] = targets.size();
+        log.info("Compiled {} confusables.", sources.length);
+        return new ConfusablesTable(sources, offsets, targets.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    private static ProtectedSkeletons compileBrands(final ConfusablesTable confusablesTable, final Path brands)
+            throws IOException {
+        final List<String> labels = new ArrayList<>();
+        for (final String line : Files.readAllLines(brands, StandardCharsets.UTF_8)) {
+            final String label = stripComment(line);
+            if (!label.isEmpty()) {
+                labels.add(Normalizer.normalize(label.toLowerCase(Locale.ROOT), Normalizer.Form.NFD));
+            }
+        }
+        final long[] brandHashes = labels.stream().mapToLong(ConfusablesTable::literalHash).sorted().distinct()
+                .toArray();
+        final long[] skeletonHashes = labels.stream().mapToLong(confusablesTable::skeletonHash).sorted().distinct()
+                .toArray();
+        log.info("Compiled {} protected brands.", brandHashes.length);
+        return new ProtectedSkeletons(brandHashes, skeletonHashes);
+    }
+
+    private static String stripComment(final String line) {
+        // The Unicode data files start with a byte order mark
+        final String withoutBom = line.replace("\uFEFF", "");
+        final int comment = withoutBom.indexOf('#');
+        return (comment < 0 ? withoutBom : withoutBom.substring(0, comment)).trim();
+    }
+}
@@ -0,0 +1,150 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.confusables;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * The confusables mapping from Unicode Technical Standard #39, compiled ahead of
+ * time by {@link ConfusablesCompiler} into three primitive arrays:
+ * <ul>
+ * <li><code>sources</code> The sorted code points which have a prototype.</li>
+ * <li><code>offsets</code> The start of the prototype of <code>sources[i]</code>
+ * in <code>targets</code>, with a final entry marking the end of the last
+ * prototype.</li>
+ * <li><code>targets</code> The code points of all prototypes, concatenated.</li>
+ * </ul>
+ * Skeletons are never materialised as strings. Instead the code points of the
+ * skeleton are fed directly into a 64-bit FNV-1a hash, which is compared to the
+ * hashes in {@link ProtectedSkeletons}.
+ */
+public class ConfusablesTable {
+    public static final String RESOURCE = "/confusables.bin";
+    /**
+     * The complete confusables data has several thousand mappings, a table with
+     * fewer mappings than this is an excerpt.
+     */
+    public static final int COMPLETE_TABLE_MINIMUM_SIZE = 1000;
+    static final int MAGIC = 0x45564354;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private final int[] sources;
+    private final int[] offsets;
+    private final int[] targets;
+
+    ConfusablesTable(final int[] sources, final int[] offsets, final int[] targets) {
+        this.sources = sources;
+        this.offsets = offsets;
+        this.targets = targets;
+    }
+
+    public static ConfusablesTable load() throws IOException {
+        try (final InputStream resource = ConfusablesTable.class.getResourceAsStream(RESOURCE)) {
+            if (resource == null) {
+                throw new IOException(String.format("The resource %s is missing.", RESOURCE));
+            }
+            final DataInputStream in = new DataInputStream(resource);
+            if (in.readInt() != MAGIC) {
+                throw new IOException(String.format("The resource %s is not a confusables table.", RESOURCE));
+            }
+            final int[] sources = readInts(in, in.readInt());
+            final int[] offsets = readInts(in, sources.length + 1);
+            final int[] targets = readInts(in, offsets[sources.length]);
+            return new ConfusablesTable(sources, offsets, targets);
+        }
+    }
+
+    /**
+     * @return the number of code points which have a prototype.
+     */
+    public int size() {
+        return sources.length;
+    }
+
+    void write(final DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(sources.length);
+        for (final int source : sources) {
+            out.writeInt(source);
+        }
+        for (final int offset : offsets) {
+            out.writeInt(offset);
+        }
+        for (final int target : targets) {
+            out.writeInt(target);
+        }
+    }
+
+    static int[] readInts(final DataInputStream in, final int length) throws IOException {
+        final int[] result = new int[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = in.readInt();
+        }
+        return result;
+    }
+
+    /**
+     * Compute the hash of the skeleton of a string, i.e. the string where each
+     * code point has been replaced by its prototype. Since DNS labels are case
+     * insensitive, the skeleton is lowercased.
+     *
+     * @param nfd a lowercase string in Normalization Form D.
+     * @return the hash of the skeleton.
+     */
+    public long skeletonHash(final CharSequence nfd) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < nfd.length();) {
+            final int codePoint = Character.codePointAt(nfd, i);
+            i += Character.charCount(codePoint);
+            final int index = Arrays.binarySearch(sources, codePoint);
+            if (index < 0) {
+                hash = (hash ^ Character.toLowerCase(codePoint)) * FNV_PRIME;
+                continue;
+            }
+            for (int j = offsets[index]; j < offsets[index + 1]; j++) {
+                hash = (hash ^ Character.toLowerCase(targets[j])) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Compute the hash of a string without mapping it to its skeleton, using the
+     * same hash function as {@link #skeletonHash(CharSequence)}.
+     *
+     * @param nfd a lowercase string in Normalization Form D.
+     * @return the hash of the string.
+     */
+    public static long literalHash(final CharSequence nfd) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < nfd.length();) {
+            final int codePoint = Character.codePointAt(nfd, i);
+            i += Character.charCount(codePoint);
+            hash = (hash ^ codePoint) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
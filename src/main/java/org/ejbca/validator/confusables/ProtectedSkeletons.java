@@ -0,0 +1,97 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.confusables;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * The protected brands, compiled ahead of time by {@link ConfusablesCompiler}
+ * into two sorted arrays of hashes:
+ * <ul>
+ * <li><code>brands</code> The hashes of the brands themselves, as computed by
+ * {@link ConfusablesTable#literalHash(CharSequence)}.</li>
+ * <li><code>skeletons</code> The hashes of the skeletons of the brands, as
+ * computed by {@link ConfusablesTable#skeletonHash(CharSequence)}.</li>
+ * </ul>
+ */
+public class ProtectedSkeletons {
+    public static final String RESOURCE = "/protected-skeletons.bin";
+    static final int MAGIC = 0x45565053;
+    private final long[] brands;
+    private final long[] skeletons;
+
+    ProtectedSkeletons(final long[] brands, final long[] skeletons) {
+        this.brands = brands;
+        this.skeletons = skeletons;
+    }
+
+    public static ProtectedSkeletons load() throws IOException {
+        try (final InputStream resource = ProtectedSkeletons.class.getResourceAsStream(RESOURCE)) {
+            if (resource == null) {
+                throw new IOException(String.format("The resource %s is missing.", RESOURCE));
+            }
+            final DataInputStream in = new DataInputStream(resource);
+            if (in.readInt() != MAGIC) {
+                throw new IOException(String.format("The resource %s is not a set of protected skeletons.", RESOURCE));
+            }
+            final long[] brands = readLongs(in, in.readInt());
+            final long[] skeletons = readLongs(in, in.readInt());
+            return new ProtectedSkeletons(brands, skeletons);
+        }
+    }
+
+    void write(final DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(brands.length);
+        for (final long brand : brands) {
+            out.writeLong(brand);
+        }
+        out.writeInt(skeletons.length);
+        for (final long skeleton : skeletons) {
+            out.writeLong(skeleton);
+        }
+    }
+
+    private static long[] readLongs(final DataInputStream in, final int length) throws IOException {
+        final long[] result = new long[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = in.readLong();
+        }
+        return result;
+    }
+
+    /**
+     * Check if a label is confusable with a protected brand without being the
+     * brand itself.
+     *
+     * @param literalHash the literal hash of the label.
+     * @param skeletonHash the skeleton hash of the label.
+     * @return true if the label is confusable with a protected brand.
+     */
+    public boolean isConfusable(final long literalHash, final long skeletonHash) {
+        return Arrays.binarySearch(skeletons, skeletonHash) >= 0 && Arrays.binarySearch(brands, literalHash) < 0;
+    }
+}
@@ -0,0 +1,59 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.dns;
+
+/**
+ * A DNS CAA resource record as defined in RFC 8659.
+ */
+public class CaaRecord {
+    private static final int ISSUER_CRITICAL = 0x80;
+    private final int flags;
+    private final String tag;
+    private final String value;
+
+    public CaaRecord(final int flags, final String tag, final String value) {
+        this.flags = flags;
+        this.tag = tag;
+        this.value = value;
+    }
+
+    /**
+     * @return true if the issuer critical flag is set, i.e. a CA which does not
+     *         understand the tag of this record must not issue.
+     */
+    public boolean isCritical() {
+        return (flags & ISSUER_CRITICAL) != 0;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d %s \"%s\"", flags, tag, value);
+    }
+}
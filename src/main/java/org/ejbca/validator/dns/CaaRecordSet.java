@@ -0,0 +1,76 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.dns;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of a CAA lookup of a single domain name, i.e. the CAA records of
+ * the domain, which may be empty, or the reason why the lookup failed.
+ */
+public class CaaRecordSet {
+    private static final CaaRecordSet EMPTY = new CaaRecordSet(Collections.emptyList(), null);
+    private final List<CaaRecord> records;
+    private final String failure;
+
+    private CaaRecordSet(final List<CaaRecord> records, final String failure) {
+        this.records = records;
+        this.failure = failure;
+    }
+
+    public static CaaRecordSet of(final List<CaaRecord> records) {
+        return records.isEmpty() ? EMPTY : new CaaRecordSet(Collections.unmodifiableList(records), null);
+    }
+
+    public static CaaRecordSet empty() {
+        return EMPTY;
+    }
+
+    public static CaaRecordSet failure(final String failure) {
+        return new CaaRecordSet(Collections.emptyList(), failure);
+    }
+
+    public List<CaaRecord> getRecords() {
+        return records;
+    }
+
+    public boolean isEmpty() {
+        return failure == null && records.isEmpty();
+    }
+
+    public boolean isFailure() {
+        return failure != null;
+    }
+
+    /**
+     * @return a description of why the lookup failed, or null if it succeeded.
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    @Override
+    public String toString() {
+        return isFailure() ? failure : records.toString();
+    }
+}
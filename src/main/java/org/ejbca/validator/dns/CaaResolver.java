@@ -0,0 +1,309 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.dns;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.net.HostAndPort;
+
+/**
+ * A stub resolver for CAA records which sends the queries for a batch of domain
+ * names concurrently over a single non-blocking UDP socket, and caches the
+ * answers for as long as their TTL allows. Negative answers are cached using
+ * the TTL of the SOA record in the authority section, as specified by RFC 2308.
+ * Lookup failures are never cached. The cache holds at most
+ * {@value #MAX_CACHE_ENTRIES} answers, and the least recently used answer is
+ * evicted when it is full.
+ * <p>
+ * Unanswered queries are retransmitted periodically until the timeout of the
+ * batch expires. Truncated answers are retried over TCP.
+ */
+public class CaaResolver {
+    private static final Logger log = LogManager.getLogger(CaaResolver.class);
+    private static final int DNS_PORT = 53;
+    private static final long RETRANSMIT_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    /** Answers are never cached longer than this, regardless of their TTL. */
+    private static final long MAX_TTL_SECONDS = TimeUnit.HOURS.toSeconds(8);
+    static final int MAX_CACHE_ENTRIES = 10000;
+    private static final Path RESOLV_CONF = Paths.get("/etc/resolv.conf");
+    private final InetSocketAddress resolverAddress;
+    private final Map<String, CacheEntry> cache = Collections.synchronizedMap(new LruCache(MAX_CACHE_ENTRIES));
+    private final Random random = new SecureRandom();
+
+    private static class CacheEntry {
+        private final CaaRecordSet recordSet;
+        private final long expiresAt;
+
+        private CacheEntry(final CaaRecordSet recordSet, final long expiresAt) {
+            this.recordSet = recordSet;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class LruCache extends LinkedHashMap<String, CacheEntry> {
+        private static final long serialVersionUID = 1L;
+        private final int maxEntries;
+
+        private LruCache(final int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, CacheEntry> eldest) {
+            return size() > maxEntries;
+        }
+    }
+
+    private static class Query {
+        private final String domain;
+        private final ByteBuffer message;
+
+        private Query(final String domain, final ByteBuffer message) {
+            this.domain = domain;
+            this.message = message;
+        }
+    }
+
+    public CaaResolver(final InetSocketAddress resolverAddress) {
+        this.resolverAddress = resolverAddress;
+    }
+
+    /**
+     * Parse the address of a resolver.
+     *
+     * @param address the address as <code>host</code> or <code>host:port</code>,
+     *        where IPv6 addresses with a port are enclosed in brackets.
+     * @return the address, using port {@value #DNS_PORT} if no port is given.
+     */
+    public static InetSocketAddress parseAddress(final String address) {
+        final HostAndPort hostAndPort = HostAndPort.fromString(address.trim()).withDefaultPort(DNS_PORT);
+        return new InetSocketAddress(hostAndPort.getHost(), hostAndPort.getPort());
+    }
+
+    /**
+     * Get the address of the first name server in <code>/etc/resolv.conf</code>.
+     *
+     * @throws IOException if no name server is configured.
+     */
+    public static InetSocketAddress systemResolverAddress() throws IOException {
+        if (Files.isReadable(RESOLV_CONF)) {
+            for (final String line : Files.readAllLines(RESOLV_CONF, StandardCharsets.UTF_8)) {
+                final String[] tokens = line.trim().split("\\s+");
+                if (tokens.length >= 2 && "nameserver".equals(tokens[0])) {
+                    return new InetSocketAddress(tokens[1], DNS_PORT);
+                }
+            }
+        }
+        throw new IOException(String.format("No name server is configured in %s.", RESOLV_CONF));
+    }
+
+    public InetSocketAddress getResolverAddress() {
+        return resolverAddress;
+    }
+
+    /**
+     * Look up the CAA records of a batch of domain names. Each distinct name is
+     * only queried once, and names with a cached answer are not queried at all.
+     *
+     * @param domains the domain names, in lowercase and without trailing dot.
+     * @param timeoutNanos the maximum time to wait for answers.
+     * @return the result of the lookup of each domain name. Names which could not
+     *         be looked up in time are mapped to a failure.
+     */
+    public Map<String, CaaRecordSet> lookup(final Collection<String> domains, final long timeoutNanos) {
+        final long start = System.nanoTime();
+        final long expiresAt = start + timeoutNanos;
+        final Map<String, CaaRecordSet> results = new HashMap<>();
+        final Map<Integer, Query> queries = new HashMap<>();
+        for (final String domain : new LinkedHashSet<>(domains)) {
+            final CacheEntry cacheEntry = cache.get(domain);
+            if (cacheEntry != null) {
+                if (cacheEntry.expiresAt - start > 0) {
+                    results.put(domain, cacheEntry.recordSet);
+                    continue;
+                }
+                cache.remove(domain);
+            }
+            try {
+                final int id = nextId(queries);
+                queries.put(id, new Query(domain, DnsMessage.encodeCaaQuery(id, domain)));
+            } catch (final IOException e) {
+                results.put(domain, CaaRecordSet.failure(e.getMessage()));
+            }
+        }
+        if (queries.isEmpty()) {
+            return results;
+        }
+        final List<Query> truncated = new ArrayList<>();
+        try (final DatagramChannel channel = DatagramChannel.open();
+                final Selector selector = Selector.open()) {
+            channel.configureBlocking(false);
+            channel.connect(resolverAddress);
+            channel.register(selector, SelectionKey.OP_READ);
+            final ByteBuffer buffer = ByteBuffer.allocate(DnsMessage.MAX_UDP_PAYLOAD);
+            long retransmitAt = start;
+            while (!queries.isEmpty()) {
+                final long now = System.nanoTime();
+                if (now - expiresAt >= 0) {
+                    break;
+                }
+                if (now - retransmitAt >= 0) {
+                    for (final Query query : queries.values()) {
+                        channel.write(query.message.duplicate());
+                    }
+                    retransmitAt = now + RETRANSMIT_NANOS;
+                }
+                final long waitNanos = Math.min(retransmitAt, expiresAt) - now;
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+                selector.selectedKeys().clear();
+                for (buffer.clear(); channel.read(buffer) > 0; buffer.clear()) {
+                    buffer.flip();
+                    receive(buffer, queries, results, truncated);
+                }
+            }
+        } catch (final IOException e) {
+            log.warn("CAA lookup using the resolver {} failed. {}", resolverAddress, e.getMessage());
+        }
+        for (final Query query : truncated) {
+            final long remainingNanos = expiresAt - System.nanoTime();
+            if (remainingNanos <= 0) {
+                results.put(query.domain, CaaRecordSet.failure("Timed out waiting for an answer over TCP."));
+                continue;
+            }
+            try {
+                receive(lookupOverTcp(query, remainingNanos), query.domain, results);
+            } catch (final IOException e) {
+                results.put(query.domain,
+                        CaaRecordSet.failure(String.format("The lookup over TCP failed. %s", e.getMessage())));
+            }
+        }
+        for (final Query query : queries.values()) {
+            results.put(query.domain, CaaRecordSet.failure(String.format(
+                    "No answer from the resolver %s within %d ms.", resolverAddress,
+                    TimeUnit.NANOSECONDS.toMillis(timeoutNanos))));
+        }
+        return results;
+    }
+
+    private int nextId(final Map<Integer, Query> queries) {
+        for (;;) {
+            final int id = random.nextInt(0x10000);
+            if (!queries.containsKey(id)) {
+                return id;
+            }
+        }
+    }
+
+    private void receive(final ByteBuffer buffer, final Map<Integer, Query> queries,
+            final Map<String, CaaRecordSet> results, final List<Query> truncated) {
+        final DnsMessage response;
+        try {
+            response = DnsMessage.decode(buffer);
+        } catch (final IOException e) {
+            log.debug("Ignoring a malformed DNS response. {}", e.getMessage());
+            return;
+        }
+        final Query query = queries.get(response.getId());
+        if (query == null || !query.domain.equals(response.getQuestionName())) {
+            // A late answer to a retransmitted query, or a spoofing attempt
+            return;
+        }
+        queries.remove(response.getId());
+        if (response.isTruncated()) {
+            truncated.add(query);
+            return;
+        }
+        receive(response, query.domain, results);
+    }
+
+    private void receive(final DnsMessage response, final String domain, final Map<String, CaaRecordSet> results) {
+        final CaaRecordSet recordSet;
+        if (response.getRcode() == DnsMessage.RCODE_NOERROR) {
+            recordSet = CaaRecordSet.of(response.getCaaRecords());
+        } else if (response.getRcode() == DnsMessage.RCODE_NXDOMAIN) {
+            recordSet = CaaRecordSet.empty();
+        } else {
+            results.put(domain, CaaRecordSet.failure(
+                    String.format("The resolver %s answered with RCODE %d.", resolverAddress, response.getRcode())));
+            return;
+        }
+        results.put(domain, recordSet);
+        final long ttlSeconds = Math.min(response.getTtlSeconds(), MAX_TTL_SECONDS);
+        if (ttlSeconds > 0) {
+            cache.put(domain, new CacheEntry(recordSet, System.nanoTime() + TimeUnit.SECONDS.toNanos(ttlSeconds)));
+        } else {
+            cache.remove(domain);
+        }
+    }
+
+    private DnsMessage lookupOverTcp(final Query query, final long timeoutNanos) throws IOException {
+        final int timeoutMillis = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                TimeUnit.NANOSECONDS.toMillis(timeoutNanos)));
+        try (final Socket socket = new Socket()) {
+            socket.connect(resolverAddress, timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            final ByteBuffer message = query.message.duplicate();
+            final byte[] encodedQuery = new byte[message.remaining()];
+            message.get(encodedQuery);
+            out.writeShort(encodedQuery.length);
+            out.write(encodedQuery);
+            out.flush();
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+            final byte[] encodedResponse = new byte[in.readUnsignedShort()];
+            in.readFully(encodedResponse);
+            final DnsMessage response = DnsMessage.decode(ByteBuffer.wrap(encodedResponse));
+            final int id = message.getShort(0) & 0xffff;
+            if (response.getId() != id || !query.domain.equals(response.getQuestionName())) {
+                throw new IOException("The answer does not match the question.");
+            }
+            return response;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.dns;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Encodes CAA queries and decodes the parts of DNS responses needed to answer
+ * them, as defined in RFC 1035, RFC 2308 and RFC 8659. Only what a stub
+ * resolver needs is implemented; the recursive resolver does the rest, including
+ * following CNAMEs.
+ */
+class DnsMessage {
+    static final int TYPE_SOA = 6;
+    static final int TYPE_OPT = 41;
+    static final int TYPE_CAA = 257;
+    static final int CLASS_IN = 1;
+    static final int RCODE_NOERROR = 0;
+    static final int RCODE_NXDOMAIN = 3;
+    static final int MAX_UDP_PAYLOAD = 4096;
+    private static final int FLAG_RESPONSE = 0x8000;
+    private static final int FLAG_TRUNCATED = 0x0200;
+    private static final int FLAG_RECURSION_DESIRED = 0x0100;
+    private static final int MAX_POINTERS = 64;
+    private final int id;
+    private final String questionName;
+    private final boolean truncated;
+    private final int rcode;
+    private final List<CaaRecord> caaRecords;
+    private final long ttlSeconds;
+
+    private DnsMessage(final int id, final String questionName, final boolean truncated, final int rcode,
+            final List<CaaRecord> caaRecords, final long ttlSeconds) {
+        this.id = id;
+        this.questionName = questionName;
+        this.truncated = truncated;
+        this.rcode = rcode;
+        this.caaRecords = caaRecords;
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    /**
+     * Encode a CAA query with recursion desired and an EDNS(0) record
+     * advertising a UDP payload size of {@value #MAX_UDP_PAYLOAD} bytes.
+     *
+     * @param id the id of the query.
+     * @param name the domain name to query, without trailing dot.
+     * @return the encoded query, ready to be sent.
+     * @throws IOException if the domain name cannot be encoded.
+     */
+    static ByteBuffer encodeCaaQuery(final int id, final String name) throws IOException {
+        if (name.length() > 253) {
+            throw new IOException(String.format("The domain name '%s' is too long.", name));
+        }
+        final ByteBuffer query = ByteBuffer.allocate(12 + name.length() + 2 + 4 + 11);
+        query.putShort((short) id);
+        query.putShort((short) FLAG_RECURSION_DESIRED);
+        query.putShort((short) 1);
+        query.putShort((short) 0);
+        query.putShort((short) 0);
+        query.putShort((short) 1);
+        for (final String label : name.split("\\.")) {
+            final byte[] encodedLabel = label.getBytes(StandardCharsets.US_ASCII);
+            if (encodedLabel.length == 0 || encodedLabel.length > 63) {
+                throw new IOException(String.format("The domain name '%s' cannot be encoded.", name));
+            }
+            query.put((byte) encodedLabel.length);
+            query.put(encodedLabel);
+        }
+        query.put((byte) 0);
+        query.putShort((short) TYPE_CAA);
+        query.putShort((short) CLASS_IN);
+        // OPT pseudo-record for EDNS(0): root name, type, payload size, no extended flags or options
+        query.put((byte) 0);
+        query.putShort((short) TYPE_OPT);
+        query.putShort((short) MAX_UDP_PAYLOAD);
+        query.putInt(0);
+        query.putShort((short) 0);
+        query.flip();
+        return query;
+    }
+
+    /**
+     * Decode a response to a CAA query.
+     *
+     * @param response the response, positioned at the start of the message.
+     * @return the decoded response.
+     * @throws IOException if the response is malformed.
+     */
+    static DnsMessage decode(final ByteBuffer response) throws IOException {
+        try {
+            final int id = response.getShort() & 0xffff;
+            final int flags = response.getShort() & 0xffff;
+            final int questions = response.getShort() & 0xffff;
+            final int answers = response.getShort() & 0xffff;
+            final int authorities = response.getShort() & 0xffff;
+            response.getShort();
+            if ((flags & FLAG_RESPONSE) == 0 || questions != 1) {
+                throw new IOException("Not a response to a single question.");
+            }
+            final boolean truncated = (flags & FLAG_TRUNCATED) != 0;
+            final int rcode = flags & 0xf;
+            final String questionName = readName(response);
+            final int questionType = response.getShort() & 0xffff;
+            response.getShort();
+            if (questionType != TYPE_CAA) {
+                throw new IOException("Not a response to a CAA query.");
+            }
+            if (truncated) {
+                return new DnsMessage(id, questionName, true, rcode, new ArrayList<>(), 0);
+            }
+            final List<CaaRecord> caaRecords = new ArrayList<>();
+            long answerTtl = Long.MAX_VALUE;
+            for (int i = 0; i < answers; i++) {
+                readName(response);
+                final int type = response.getShort() & 0xffff;
+                response.getShort();
+                final long ttl = response.getInt() & 0xffffffffL;
+                final int end = rdataEnd(response, response.getShort() & 0xffff);
+                // The answer may start with a CNAME chain, whose TTLs also limit how long the answer is valid
+                answerTtl = Math.min(answerTtl, ttl);
+                if (type == TYPE_CAA) {
+                    checkWithinRdata(response, 2, end);
+                    final int caaFlags = response.get() & 0xff;
+                    final byte[] tag = new byte[response.get() & 0xff];
+                    checkWithinRdata(response, tag.length, end);
+                    response.get(tag);
+                    final byte[] value = new byte[end - response.position()];
+                    response.get(value);
+                    caaRecords.add(new CaaRecord(caaFlags,
+                            new String(tag, StandardCharsets.US_ASCII).toLowerCase(Locale.ROOT),
+                            new String(value, StandardCharsets.UTF_8)));
+                }
+                response.position(end);
+            }
+            long negativeTtl = 0;
+            for (int i = 0; i < authorities; i++) {
+                readName(response);
+                final int type = response.getShort() & 0xffff;
+                response.getShort();
+                final long ttl = response.getInt() & 0xffffffffL;
+                final int end = rdataEnd(response, response.getShort() & 0xffff);
+                if (type == TYPE_SOA) {
+                    readName(response);
+                    readName(response);
+                    // SERIAL, REFRESH, RETRY, EXPIRE and MINIMUM
+                    checkWithinRdata(response, 20, end);
+                    response.position(response.position() + 16);
+                    final long minimum = response.getInt() & 0xffffffffL;
+                    // RFC 2308 section 5
+                    negativeTtl = Math.min(ttl, minimum);
+                }
+                response.position(end);
+            }
+            final long ttlSeconds = caaRecords.isEmpty() ? negativeTtl : answerTtl;
+            return new DnsMessage(id, questionName, false, rcode, caaRecords, ttlSeconds);
+        } catch (final BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("The response is truncated or malformed.");
+        }
+    }
+
+    /**
+     * @return the end of the RDATA of a record, whose length has just been read.
+     * @throws IOException if the RDATA extends past the end of the message.
+     */
+    private static int rdataEnd(final ByteBuffer message, final int length) throws IOException {
+        if (length > message.remaining()) {
+            throw new IOException("The RDATA of a record extends past the end of the response.");
+        }
+        return message.position() + length;
+    }
+
+    /**
+     * @throws IOException if the next <code>length</code> bytes extend past the end
+     *         of the RDATA, or if a name in the RDATA already did.
+     */
+    private static void checkWithinRdata(final ByteBuffer message, final int length, final int end)
+            throws IOException {
+        if (length > end - message.position()) {
+            throw new IOException("A field extends past the end of the RDATA of a record.");
+        }
+    }
+
+    private static String readName(final ByteBuffer message) throws IOException {
+        final StringBuilder name = new StringBuilder();
+        int resumeAt = -1;
+        int pointers = 0;
+        for (int length = message.get() & 0xff; length != 0; length = message.get() & 0xff) {
+            if ((length & 0xc0) == 0xc0) {
+                final int offset = ((length & 0x3f) << 8) | (message.get() & 0xff);
+                if (++pointers > MAX_POINTERS) {
+                    throw new IOException("The response contains a compression loop.");
+                }
+                if (resumeAt < 0) {
+                    resumeAt = message.position();
+                }
+                message.position(offset);
+                continue;
+            }
+            final byte[] label = new byte[length];
+            message.get(label);
+            if (name.length() > 0) {
+                name.append('.');
+            }
+            name.append(new String(label, StandardCharsets.US_ASCII));
+        }
+        if (resumeAt >= 0) {
+            message.position(resumeAt);
+        }
+        return name.toString().toLowerCase(Locale.ROOT);
+    }
+
+    int getId() {
+        return id;
+    }
+
+    String getQuestionName() {
+        return questionName;
+    }
+
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    int getRcode() {
+        return rcode;
+    }
+
+    List<CaaRecord> getCaaRecords() {
+        return caaRecords;
+    }
+
+    /**
+     * @return how long the answer may be cached, from the TTL of the records in
+     *         the answer, or for a negative answer, from the SOA record in the
+     *         authority section. Negative answers without a SOA record have a TTL
+     *         of 0 and must not be cached.
+     */
+    long getTtlSeconds() {
+        return ttlSeconds;
+    }
+}
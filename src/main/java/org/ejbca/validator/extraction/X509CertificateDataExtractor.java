@@ -28,6 +28,9 @@ import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
 import org.ejbca.validator.exception.CertificateExtractionException;
 import org.ejbca.validator.extraction.data.CertificateData;
 import org.ejbca.validator.extraction.data.CommonNameCertificateData;
+import org.ejbca.validator.extraction.data.DnsNameCertificateData;
+import org.ejbca.validator.extraction.data.SubjectDnCertificateData;
+import org.ejbca.validator.extraction.data.SubjectPublicKeyInfoCertificateData;
 
 public class X509CertificateDataExtractor implements CertificateDataExtractor {
     private final JcaX509CertificateHolder certificateHolder;
@@ -54,6 +57,15 @@ public class X509CertificateDataExtractor implements CertificateDataExtractor {
         if ("CN".equals(partName)) {
             return extractCommonNames();
         }
+        if ("DN".equals(partName)) {
+            return extractSubjectDn();
+        }
+        if ("SPKI".equals(partName)) {
+            return extractSubjectPublicKeyInfo();
+        }
+        if ("DNS".equals(partName)) {
+            return extractDnsNames();
+        }
         throw new CertificateExtractionException(
                 String.format("Extraction of certificate component '%s' is not supported.", partName));
     }
@@ -61,4 +73,16 @@ public class X509CertificateDataExtractor implements CertificateDataExtractor {
     private CertificateData extractCommonNames() {
         return new CommonNameCertificateData(certificateHolder);
     }
+
+    private CertificateData extractSubjectDn() {
+        return new SubjectDnCertificateData(certificateHolder);
+    }
+
+    private CertificateData extractSubjectPublicKeyInfo() {
+        return new SubjectPublicKeyInfoCertificateData(certificateHolder);
+    }
+
+    private CertificateData extractDnsNames() {
+        return new DnsNameCertificateData(certificateHolder);
+    }
 }
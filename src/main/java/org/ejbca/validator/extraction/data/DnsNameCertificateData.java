@@ -0,0 +1,66 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.extraction.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.asn1.DERIA5String;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+
+/**
+ * Exposes the dNSName entries of the Subject Alternative Name extension.
+ */
+public class DnsNameCertificateData implements CertificateData {
+    private final JcaX509CertificateHolder certificateHolder;
+
+    public DnsNameCertificateData(final JcaX509CertificateHolder certificateHolder) {
+        this.certificateHolder = certificateHolder;
+    }
+
+    @Override
+    public String getPartName() {
+        return "DNS";
+    }
+
+    @Override
+    public List<String> getDataItems() {
+        final List<String> dnsNames = new ArrayList<>();
+        if (certificateHolder.getExtensions() == null) {
+            return dnsNames;
+        }
+        final GeneralNames subjectAltNames = GeneralNames.fromExtensions(certificateHolder.getExtensions(),
+                Extension.subjectAlternativeName);
+        if (subjectAltNames == null) {
+            return dnsNames;
+        }
+        for (final GeneralName generalName : subjectAltNames.getNames()) {
+            if (generalName.getTagNo() == GeneralName.dNSName) {
+                dnsNames.add(DERIA5String.getInstance(generalName.getName()).getString());
+            }
+        }
+        return dnsNames;
+    }
+}
@@ -0,0 +1,58 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.extraction.data;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.ejbca.validator.exception.CertificateExtractionException;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Exposes the public key of the certificate as the lowercase hex-encoded
+ * SHA-256 hash of the DER-encoded SubjectPublicKeyInfo structure.
+ */
+public class SubjectPublicKeyInfoCertificateData implements CertificateData {
+    private final JcaX509CertificateHolder certificateHolder;
+
+    public SubjectPublicKeyInfoCertificateData(final JcaX509CertificateHolder certificateHolder) {
+        this.certificateHolder = certificateHolder;
+    }
+
+    @Override
+    public String getPartName() {
+        return "SPKI";
+    }
+
+    @Override
+    public List<String> getDataItems() {
+        try {
+            final byte[] encodedSpki = certificateHolder.getSubjectPublicKeyInfo().getEncoded();
+            return Collections.singletonList(Hashing.sha256().hashBytes(encodedSpki).toString());
+        } catch (final IOException e) {
+            throw new CertificateExtractionException("Could not encode the public key of the certificate.", e);
+        }
+    }
+}
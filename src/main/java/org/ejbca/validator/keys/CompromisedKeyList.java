@@ -0,0 +1,125 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.keys;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A list of SHA-256 hashes of SubjectPublicKeyInfo structures belonging to keys
+ * known to be compromised. The list is stored in two files created by
+ * {@link CompromisedKeyListWriter}:
+ * <ul>
+ * <li><code>&lt;base&gt;.bloom</code> A Bloom filter used to reject most keys
+ * without touching the hash file.</li>
+ * <li><code>&lt;base&gt;.hashes</code> The sorted hashes, used to confirm a hit in
+ * the Bloom filter.</li>
+ * </ul>
+ * Both files carry the same generation, a random number chosen each time the list
+ * is written. The writer moves the hash file into place first and the Bloom filter
+ * last, so a reader opening the files in between sees a new hash file and an old
+ * Bloom filter. Since the old filter would reject the keys added to the new list,
+ * such a pair is never used: opening the list is retried until both files are from
+ * the same generation.
+ */
+public class CompromisedKeyList implements Closeable {
+    public static final String BLOOM_FILTER_SUFFIX = ".bloom";
+    public static final String HASHES_SUFFIX = ".hashes";
+    private static final int OPEN_ATTEMPTS = 10;
+    private static final long OPEN_RETRY_MILLIS = 50;
+    private final MappedBloomFilter bloomFilter;
+    private final SortedHashFile hashFile;
+
+    public CompromisedKeyList(final MappedBloomFilter bloomFilter, final SortedHashFile hashFile) {
+        this.bloomFilter = bloomFilter;
+        this.hashFile = hashFile;
+    }
+
+    /**
+     * @return the paths of the files making up the list with the given base path.
+     */
+    public static List<Path> getPaths(final String base) {
+        return Arrays.asList(Paths.get(base + BLOOM_FILTER_SUFFIX), Paths.get(base + HASHES_SUFFIX));
+    }
+
+    /**
+     * Open the files of a list.
+     *
+     * @param base the path of the files, without the suffix.
+     * @return the list.
+     * @throws IOException if the files could not be opened, or were still not from
+     *         the same generation after retrying.
+     */
+    public static CompromisedKeyList open(final String base) throws IOException {
+        final Path bloomFilterPath = Paths.get(base + BLOOM_FILTER_SUFFIX);
+        final Path hashesPath = Paths.get(base + HASHES_SUFFIX);
+        for (int attempt = 1;; attempt++) {
+            final MappedBloomFilter bloomFilter = MappedBloomFilter.open(bloomFilterPath);
+            final SortedHashFile hashFile;
+            try {
+                hashFile = SortedHashFile.open(hashesPath);
+            } catch (final IOException e) {
+                bloomFilter.close();
+                throw e;
+            }
+            if (bloomFilter.getGeneration() == hashFile.getGeneration()) {
+                return new CompromisedKeyList(bloomFilter, hashFile);
+            }
+            bloomFilter.close();
+            hashFile.close();
+            if (attempt == OPEN_ATTEMPTS) {
+                throw new IOException(String.format("The files %s and %s were not written together.",
+                        bloomFilterPath, hashesPath));
+            }
+            // The list is being replaced
+            try {
+                Thread.sleep(OPEN_RETRY_MILLIS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the list to be replaced.", e);
+            }
+        }
+    }
+
+    /**
+     * Check if a key is compromised.
+     *
+     * @param spkiHash the SHA-256 hash of the SubjectPublicKeyInfo of the key.
+     * @return true if the key is in the list of compromised keys.
+     */
+    public boolean isCompromised(final byte[] spkiHash) {
+        return bloomFilter.mightContain(spkiHash) && hashFile.contains(spkiHash);
+    }
+
+    /**
+     * Unmap the files. The list must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        bloomFilter.close();
+        hashFile.close();
+    }
+}
@@ -0,0 +1,244 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.keys;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Offline tool which creates the files used by {@link CompromisedKeyList} from a
+ * text file containing hex-encoded SHA-256 hashes of SubjectPublicKeyInfo
+ * structures, one per line. Empty lines and lines starting with # are ignored.
+ * <p>
+ * Usage:
+ * <pre>
+ * java -cp cert-validator.jar org.ejbca.validator.keys.CompromisedKeyListWriter input base [falsePositiveRate]
+ * </pre>
+ * Both files are written to temporary files first and then moved into place, the
+ * hash file first and the Bloom filter last, so that a validator reading the list
+ * never sees a partially written file. The files are marked with the same
+ * generation, so a validator opening the list between the two moves detects that
+ * the files do not belong together, see {@link CompromisedKeyList#open(String)}.
+ */
+public class CompromisedKeyListWriter {
+    private static final Logger log = LogManager.getLogger();
+    private static final double DEFAULT_FALSE_POSITIVE_RATE = 0.001;
+    private static final int WORDS_PER_HASH = SortedHashFile.RECORD_LENGTH / 8;
+    private long[] words = new long[1024 * WORDS_PER_HASH];
+    private int numberOfHashes;
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 2 && args.length != 3) {
+            log.error("Usage: CompromisedKeyListWriter input base [falsePositiveRate]");
+            System.exit(1);
+        }
+        final double falsePositiveRate = args.length == 3
+                ? parseFalsePositiveRate(args[2])
+                : DEFAULT_FALSE_POSITIVE_RATE;
+        final CompromisedKeyListWriter writer = new CompromisedKeyListWriter();
+        writer.readHashes(Paths.get(args[0]));
+        writer.sortAndRemoveDuplicates();
+        writer.write(args[1], falsePositiveRate);
+        log.info("Wrote {} unique hashes to {}.", writer.numberOfHashes, args[1]);
+    }
+
+    /**
+     * Write the files of a list and move them into place.
+     *
+     * @param base the path of the files, without the suffix.
+     * @param falsePositiveRate the false positive rate of the Bloom filter.
+     */
+    void write(final String base, final double falsePositiveRate) throws IOException {
+        final Path hashesPath = Paths.get(base + CompromisedKeyList.HASHES_SUFFIX);
+        final Path bloomFilterPath = Paths.get(base + CompromisedKeyList.BLOOM_FILTER_SUFFIX);
+        final Path hashesTmp = Paths.get(hashesPath + ".tmp");
+        final Path bloomFilterTmp = Paths.get(bloomFilterPath + ".tmp");
+        final long generation = ThreadLocalRandom.current().nextLong();
+        writeHashFile(hashesTmp, generation);
+        writeBloomFilter(bloomFilterTmp, generation, falsePositiveRate);
+        Files.move(hashesTmp, hashesPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(bloomFilterTmp, bloomFilterPath, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static double parseFalsePositiveRate(final String falsePositiveRate) {
+        try {
+            final double rate = Double.parseDouble(falsePositiveRate);
+            if (rate > 0 && rate < 1) {
+                return rate;
+            }
+        } catch (final NumberFormatException e) {
+            // Fall through
+        }
+        log.error("The false positive rate must be a number greater than 0 and less than 1, e.g. 0.001.");
+        System.exit(1);
+        return 0;
+    }
+
+    void readHashes(final Path input) throws IOException {
+        final BaseEncoding hex = BaseEncoding.base16().lowerCase();
+        try (final BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.US_ASCII)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String hash = line.toLowerCase(Locale.ROOT);
+                if (hash.length() != SortedHashFile.RECORD_LENGTH * 2 || !hex.canDecode(hash)) {
+                    throw new IOException(String.format("Line %d is not a hex-encoded SHA-256 hash.", lineNumber));
+                }
+                addHash(hex.decode(hash));
+            }
+        }
+    }
+
+    private void addHash(final byte[] hash) {
+        if ((numberOfHashes + 1) * WORDS_PER_HASH > words.length) {
+            words = Arrays.copyOf(words, words.length * 2);
+        }
+        for (int i = 0; i < WORDS_PER_HASH; i++) {
+            words[numberOfHashes * WORDS_PER_HASH + i] = SortedHashFile.readLong(hash, i * 8);
+        }
+        numberOfHashes++;
+    }
+
+    void sortAndRemoveDuplicates() {
+        sort(0, numberOfHashes - 1);
+        int unique = 0;
+        for (int i = 0; i < numberOfHashes; i++) {
+            if (unique == 0 || compare(i, unique - 1) != 0) {
+                System.arraycopy(words, i * WORDS_PER_HASH, words, unique * WORDS_PER_HASH, WORDS_PER_HASH);
+                unique++;
+            }
+        }
+        numberOfHashes = unique;
+    }
+
+    /**
+     * Quicksort with a three-way partition, so that runs of duplicate hashes,
+     * which are common when merging leaked key sets, are not compared over and
+     * over again.
+     */
+    private void sort(int low, int high) {
+        while (low < high) {
+            swap(low + (high - low) / 2, low);
+            // Partition into [low, lessThan) < pivot, [lessThan, i) == pivot and (greaterThan, high] > pivot
+            int lessThan = low;
+            int greaterThan = high;
+            for (int i = low + 1; i <= greaterThan;) {
+                final int comparison = compare(i, lessThan);
+                if (comparison < 0) {
+                    swap(i++, lessThan++);
+                } else if (comparison > 0) {
+                    swap(i, greaterThan--);
+                } else {
+                    i++;
+                }
+            }
+            // Recurse into the smaller half to bound the stack depth
+            if (lessThan - low < high - greaterThan) {
+                sort(low, lessThan - 1);
+                low = greaterThan + 1;
+            } else {
+                sort(greaterThan + 1, high);
+                high = lessThan - 1;
+            }
+        }
+    }
+
+    private int compare(final int a, final int b) {
+        for (int i = 0; i < WORDS_PER_HASH; i++) {
+            final int comparison = Long.compareUnsigned(words[a * WORDS_PER_HASH + i], words[b * WORDS_PER_HASH + i]);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return 0;
+    }
+
+    private void swap(final int a, final int b) {
+        for (int i = 0; i < WORDS_PER_HASH; i++) {
+            final long tmp = words[a * WORDS_PER_HASH + i];
+            words[a * WORDS_PER_HASH + i] = words[b * WORDS_PER_HASH + i];
+            words[b * WORDS_PER_HASH + i] = tmp;
+        }
+    }
+
+    private void writeHashFile(final Path file, final long generation) throws IOException {
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(SortedHashFile.MAGIC);
+            out.writeInt(SortedHashFile.RECORD_LENGTH);
+            out.writeLong(numberOfHashes);
+            out.writeLong(generation);
+            for (int i = 0; i < numberOfHashes * WORDS_PER_HASH; i++) {
+                out.writeLong(words[i]);
+            }
+        }
+    }
+
+    private void writeBloomFilter(final Path file, final long generation, final double falsePositiveRate)
+            throws IOException {
+        final long n = Math.max(1, numberOfHashes);
+        final long optimalNumberOfBits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        final long numberOfBits = (optimalNumberOfBits + 63) / 64 * 64;
+        final int numberOfHashFunctions = Math.max(1, (int) Math.round((double) numberOfBits / n * Math.log(2)));
+        if (MappedBloomFilter.HEADER_LENGTH + numberOfBits / 8 > Integer.MAX_VALUE) {
+            throw new IOException("The Bloom filter would be larger than 2 GiB. Use a higher false positive rate.");
+        }
+        final long[] bits = new long[(int) (numberOfBits / 64)];
+        for (int i = 0; i < numberOfHashes; i++) {
+            final long h1 = words[i * WORDS_PER_HASH];
+            final long h2 = words[i * WORDS_PER_HASH + 1];
+            for (int j = 0; j < numberOfHashFunctions; j++) {
+                final long bitIndex = MappedBloomFilter.bitIndex(h1, h2, j, numberOfBits);
+                bits[(int) (bitIndex >>> 6)] |= 1L << (bitIndex & 63);
+            }
+        }
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MappedBloomFilter.MAGIC);
+            out.writeInt(numberOfHashFunctions);
+            out.writeLong(numberOfBits);
+            out.writeLong(generation);
+            for (final long word : bits) {
+                out.writeLong(word);
+            }
+        }
+    }
+}
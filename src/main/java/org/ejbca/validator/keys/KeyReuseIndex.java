@@ -0,0 +1,459 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.keys;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A persistent record of which subject each public key has been seen with, used to
+ * detect a subscriber key being reused across unrelated subjects. The index
+ * consists of three files:
+ * <ul>
+ * <li><code>&lt;base&gt;.log</code> An append-only log of fixed-width records,
+ * each containing the SHA-256 hash of a SubjectPublicKeyInfo, the SHA-256 hash of
+ * a subject DN and the time the record was written.</li>
+ * <li><code>&lt;base&gt;.index</code> A memory-mapped open-addressing hash table
+ * from public key hash to the most recent log record for that key. The index is
+ * derived from the log and is rebuilt whenever it does not match the log.</li>
+ * <li><code>&lt;base&gt;.lock</code> A lock file which is never replaced.
+ * Parallel invocations of the validator serialise their updates by taking an
+ * exclusive lock on this file.</li>
+ * </ul>
+ * The log and the index are only ever replaced using atomic renames, which are
+ * detected by the other processes when they acquire the lock. The log grows with
+ * every renewal and can be compacted using {@link KeyReuseIndexCompactor}, which
+ * drops records superseded by a later record for the same key as well as records
+ * older than a retention period. The index is kept at a load factor of at most
+ * 0.5 and is resized whenever it is rebuilt, so its size is bounded by the size
+ * of the compacted log. The slots of the index are mapped in segments of 1 GiB,
+ * so the index is not limited by the 2 GiB limit of a single mapping.
+ */
+public class KeyReuseIndex implements Closeable {
+    public static final String LOG_SUFFIX = ".log";
+    public static final String INDEX_SUFFIX = ".index";
+    public static final String LOCK_SUFFIX = ".lock";
+    static final int LOG_MAGIC = 0x45564b4c;
+    static final int INDEX_MAGIC = 0x45564b49;
+    static final int LOG_HEADER_LENGTH = 16;
+    static final int RECORD_LENGTH = 72;
+    private static final int INDEX_HEADER_LENGTH = 32;
+    private static final int SLOT_LENGTH = 16;
+    private static final long MINIMUM_CAPACITY = 1024;
+    /** The slots are mapped in segments of 1 GiB, since a single mapping is limited to 2 GiB */
+    private static final int SLOTS_PER_SEGMENT_SHIFT = 26;
+    private static final long SLOTS_PER_SEGMENT = 1L << SLOTS_PER_SEGMENT_SHIFT;
+    /** Locks held by this JVM, since file locks cannot be used between threads */
+    private static final ConcurrentHashMap<Path, Object> jvmLocks = new ConcurrentHashMap<>();
+    private final Path logPath;
+    private final Path indexPath;
+    private final Path lockPath;
+    private final ByteBuffer record = ByteBuffer.allocateDirect(RECORD_LENGTH);
+    private FileChannel logChannel;
+    private Object logFileKey;
+    private long generation;
+    private FileChannel indexChannel;
+    private Object indexFileKey;
+    /** The header of the index */
+    private MappedByteBuffer index;
+    private MappedByteBuffer[] slots;
+
+    public KeyReuseIndex(final String base) {
+        this.logPath = Paths.get(base + LOG_SUFFIX).toAbsolutePath();
+        this.indexPath = Paths.get(base + INDEX_SUFFIX).toAbsolutePath();
+        this.lockPath = Paths.get(base + LOCK_SUFFIX).toAbsolutePath();
+    }
+
+    /**
+     * Record that a key has been used by a subject, unless the key has previously
+     * been recorded with a different subject.
+     *
+     * @param spkiHash the SHA-256 hash of the SubjectPublicKeyInfo of the key.
+     * @param subjectHash the SHA-256 hash of the subject using the key.
+     * @return true if the key has been recorded with a different subject, in which
+     *         case nothing is written, false if the key is new or was recorded with
+     *         the same subject.
+     */
+    public boolean checkAndRecord(final byte[] spkiHash, final byte[] subjectHash) throws IOException {
+        synchronized (jvmLocks.computeIfAbsent(lockPath, path -> new Object())) {
+            final FileChannel lockChannel = lock();
+            try {
+                openLog();
+                openIndex();
+                final long slot = findSlot(spkiHash);
+                final long recordNumber = slotRecordNumber(slot);
+                if (recordNumber >= 0) {
+                    readRecord(recordNumber);
+                    final byte[] recordedSubjectHash = new byte[32];
+                    record.position(32);
+                    record.get(recordedSubjectHash);
+                    if (!Arrays.equals(recordedSubjectHash, subjectHash)) {
+                        return true;
+                    }
+                }
+                final long newRecordNumber = appendRecord(spkiHash, subjectHash, System.currentTimeMillis());
+                if (recordNumber < 0 && needsResize(indexedRecords() + 1)) {
+                    rebuildIndex();
+                } else {
+                    putSlot(slot, spkiHash, newRecordNumber);
+                    index.putLong(24, newRecordNumber + 1);
+                }
+                return false;
+            } finally {
+                lockChannel.close();
+            }
+        }
+    }
+
+    /**
+     * Rewrite the log keeping only the most recent record of each key, dropping
+     * records older than the given time, and rebuild the index.
+     *
+     * @param notBefore records written before this time (in milliseconds since
+     *        the epoch) are dropped.
+     * @return the number of records kept.
+     */
+    public long compact(final long notBefore) throws IOException {
+        synchronized (jvmLocks.computeIfAbsent(lockPath, path -> new Object())) {
+            final FileChannel lockChannel = lock();
+            try {
+                openLog();
+                openIndex();
+                final Path tmp = Paths.get(logPath + ".tmp");
+                final long newGeneration = ThreadLocalRandom.current().nextLong();
+                long kept = 0;
+                try (final FileChannel newLog = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    writeLogHeader(newLog, newGeneration);
+                    final long capacity = capacity();
+                    for (long slot = 0; slot < capacity; slot++) {
+                        final long recordNumber = slotRecordNumber(slot);
+                        if (recordNumber < 0) {
+                            continue;
+                        }
+                        readRecord(recordNumber);
+                        if (record.getLong(64) < notBefore) {
+                            continue;
+                        }
+                        record.clear();
+                        newLog.write(record, LOG_HEADER_LENGTH + kept * RECORD_LENGTH);
+                        kept++;
+                    }
+                    newLog.force(true);
+                }
+                Files.move(tmp, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                openLog();
+                rebuildIndex();
+                return kept;
+            } finally {
+                lockChannel.close();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        unmapIndex();
+        if (logChannel != null) {
+            logChannel.close();
+        }
+        if (indexChannel != null) {
+            indexChannel.close();
+        }
+    }
+
+    /**
+     * Open the lock file and take an exclusive lock on it. The lock is released
+     * when the returned channel is closed.
+     */
+    private FileChannel lock() throws IOException {
+        final FileChannel lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            lockChannel.lock();
+            return lockChannel;
+        } catch (final IOException e) {
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    private void openLog() throws IOException {
+        if (logChannel != null && Objects.equals(logFileKey, fileKey(logPath))) {
+            return;
+        }
+        if (logChannel != null) {
+            logChannel.close();
+        }
+        logChannel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        logFileKey = fileKey(logPath);
+        if (logChannel.size() < LOG_HEADER_LENGTH) {
+            writeLogHeader(logChannel, ThreadLocalRandom.current().nextLong());
+            logChannel.force(true);
+        }
+        final ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_LENGTH);
+        logChannel.read(header, 0);
+        if (header.getInt(0) != LOG_MAGIC || header.getInt(4) != RECORD_LENGTH) {
+            throw new IOException(String.format("The file %s is not a key reuse log.", logPath));
+        }
+        generation = header.getLong(8);
+        // Drop a partially written record left behind by a crash
+        final long size = logChannel.size();
+        final long wholeRecords = (size - LOG_HEADER_LENGTH) / RECORD_LENGTH;
+        if (LOG_HEADER_LENGTH + wholeRecords * RECORD_LENGTH != size) {
+            logChannel.truncate(LOG_HEADER_LENGTH + wholeRecords * RECORD_LENGTH);
+        }
+    }
+
+    private void openIndex() throws IOException {
+        if (indexChannel == null || !Objects.equals(indexFileKey, fileKey(indexPath))) {
+            if (indexChannel != null) {
+                indexChannel.close();
+            }
+            if (!Files.exists(indexPath)) {
+                rebuildIndex();
+                return;
+            }
+            indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            indexFileKey = fileKey(indexPath);
+            unmapIndex();
+            if (indexChannel.size() < INDEX_HEADER_LENGTH) {
+                rebuildIndex();
+                return;
+            }
+            index = indexChannel.map(MapMode.READ_WRITE, 0, INDEX_HEADER_LENGTH);
+            if (index.getInt(0) != INDEX_MAGIC || capacity() <= 0 || Long.bitCount(capacity()) != 1
+                    || indexChannel.size() != INDEX_HEADER_LENGTH + capacity() * SLOT_LENGTH) {
+                rebuildIndex();
+                return;
+            }
+            mapSlots();
+        }
+        if (index.getLong(8) != generation || indexedRecords() > numberOfRecords()) {
+            rebuildIndex();
+            return;
+        }
+        // Index records appended by a process which crashed before updating the index
+        for (long recordNumber = indexedRecords(); recordNumber < numberOfRecords(); recordNumber++) {
+            if (needsResize(recordNumber + 1)) {
+                rebuildIndex();
+                return;
+            }
+            readRecord(recordNumber);
+            final byte[] spkiHash = new byte[32];
+            record.position(0);
+            record.get(spkiHash);
+            putSlot(findSlot(spkiHash), spkiHash, recordNumber);
+            index.putLong(24, recordNumber + 1);
+        }
+    }
+
+    /**
+     * Build a new index from the log, sized for the number of records in the log,
+     * and atomically replace the current index with it.
+     */
+    private void rebuildIndex() throws IOException {
+        final long numberOfRecords = numberOfRecords();
+        long capacity = MINIMUM_CAPACITY;
+        while (needsResize(numberOfRecords + 1, capacity)) {
+            capacity *= 2;
+        }
+        final Path tmp = Paths.get(indexPath + ".tmp");
+        final FileChannel newIndexChannel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (indexChannel != null) {
+            indexChannel.close();
+        }
+        indexChannel = newIndexChannel;
+        unmapIndex();
+        index = indexChannel.map(MapMode.READ_WRITE, 0, INDEX_HEADER_LENGTH);
+        index.putInt(0, INDEX_MAGIC);
+        index.putLong(8, generation);
+        index.putLong(16, capacity);
+        mapSlots();
+        final byte[] spkiHash = new byte[32];
+        for (long recordNumber = 0; recordNumber < numberOfRecords; recordNumber++) {
+            readRecord(recordNumber);
+            record.position(0);
+            record.get(spkiHash);
+            putSlot(findSlot(spkiHash), spkiHash, recordNumber);
+        }
+        index.putLong(24, numberOfRecords);
+        for (final MappedByteBuffer segment : slots) {
+            segment.force();
+        }
+        index.force();
+        Files.move(tmp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        indexFileKey = fileKey(indexPath);
+    }
+
+    private static Object fileKey(final Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        } catch (final NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static void writeLogHeader(final FileChannel channel, final long generation) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_LENGTH);
+        header.putInt(LOG_MAGIC).putInt(RECORD_LENGTH).putLong(generation).flip();
+        channel.write(header, 0);
+    }
+
+    private long appendRecord(final byte[] spkiHash, final byte[] subjectHash, final long timestamp)
+            throws IOException {
+        final long recordNumber = numberOfRecords();
+        record.clear();
+        record.put(spkiHash).put(subjectHash).putLong(timestamp).flip();
+        logChannel.write(record, LOG_HEADER_LENGTH + recordNumber * RECORD_LENGTH);
+        logChannel.force(false);
+        return recordNumber;
+    }
+
+    private void readRecord(final long recordNumber) throws IOException {
+        record.clear();
+        while (record.hasRemaining()) {
+            if (logChannel.read(record, LOG_HEADER_LENGTH + recordNumber * RECORD_LENGTH + record.position()) < 0) {
+                throw new IOException(String.format("The key reuse log %s is truncated.", logPath));
+            }
+        }
+    }
+
+    private long numberOfRecords() throws IOException {
+        return (logChannel.size() - LOG_HEADER_LENGTH) / RECORD_LENGTH;
+    }
+
+    private long capacity() {
+        return index.getLong(16);
+    }
+
+    private long indexedRecords() {
+        return index.getLong(24);
+    }
+
+    private boolean needsResize(final long numberOfRecords) {
+        return needsResize(numberOfRecords, capacity());
+    }
+
+    private static boolean needsResize(final long numberOfRecords, final long capacity) {
+        return numberOfRecords * 2 > capacity;
+    }
+
+    private static long tag(final byte[] spkiHash) {
+        final long tag = SortedHashFile.readLong(spkiHash, 0);
+        return tag == 0 ? 1 : tag;
+    }
+
+    /**
+     * Map the slots of the index, whose capacity has been written to the header.
+     */
+    private void mapSlots() throws IOException {
+        final long capacity = capacity();
+        slots = new MappedByteBuffer[(int) ((capacity + SLOTS_PER_SEGMENT - 1) >>> SLOTS_PER_SEGMENT_SHIFT)];
+        for (int i = 0; i < slots.length; i++) {
+            final long firstSlot = i * SLOTS_PER_SEGMENT;
+            final long slotsInSegment = Math.min(SLOTS_PER_SEGMENT, capacity - firstSlot);
+            slots[i] = indexChannel.map(MapMode.READ_WRITE, INDEX_HEADER_LENGTH + firstSlot * SLOT_LENGTH,
+                    slotsInSegment * SLOT_LENGTH);
+        }
+    }
+
+    private void unmapIndex() {
+        MappedFiles.unmap(index);
+        index = null;
+        if (slots != null) {
+            for (final MappedByteBuffer segment : slots) {
+                MappedFiles.unmap(segment);
+            }
+            slots = null;
+        }
+    }
+
+    private MappedByteBuffer segment(final long slot) {
+        return slots[(int) (slot >>> SLOTS_PER_SEGMENT_SHIFT)];
+    }
+
+    private static int slotOffset(final long slot) {
+        return (int) (slot & (SLOTS_PER_SEGMENT - 1)) * SLOT_LENGTH;
+    }
+
+    private long slotTag(final long slot) {
+        return segment(slot).getLong(slotOffset(slot));
+    }
+
+    /**
+     * @return the number of the log record in a slot, or -1 if the slot is empty.
+     */
+    private long slotRecordNumber(final long slot) {
+        return segment(slot).getLong(slotOffset(slot) + 8) - 1;
+    }
+
+    /**
+     * Find the slot holding the given key, or the empty slot where it should be
+     * inserted, using linear probing. The first 8 bytes of the hash are used as a
+     * tag so that the log only needs to be read on a likely match.
+     */
+    private long findSlot(final byte[] spkiHash) throws IOException {
+        final long tag = tag(spkiHash);
+        final long mask = capacity() - 1;
+        for (long slot = SortedHashFile.readLong(spkiHash, 8) & mask;; slot = (slot + 1) & mask) {
+            final long recordNumber = slotRecordNumber(slot);
+            if (recordNumber < 0) {
+                return slot;
+            }
+            if (slotTag(slot) == tag && recordMatches(recordNumber, spkiHash)) {
+                return slot;
+            }
+        }
+    }
+
+    private boolean recordMatches(final long recordNumber, final byte[] spkiHash) throws IOException {
+        readRecord(recordNumber);
+        for (int i = 0; i < spkiHash.length; i++) {
+            if (record.get(i) != spkiHash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void putSlot(final long slot, final byte[] spkiHash, final long recordNumber) {
+        segment(slot).putLong(slotOffset(slot), tag(spkiHash));
+        segment(slot).putLong(slotOffset(slot) + 8, recordNumber + 1);
+    }
+}
@@ -0,0 +1,55 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.keys;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Offline tool which compacts the log of a {@link KeyReuseIndex}. Only the most
+ * recent record of each key is kept, and records older than the retention period
+ * are dropped, allowing keys which have not been seen for a long time to be used
+ * by a new subject. The tool can safely be run while validations are in progress.
+ * <p>
+ * Usage:
+ * <pre>
+ * java -cp cert-validator.jar org.ejbca.validator.keys.KeyReuseIndexCompactor base retentionDays
+ * </pre>
+ */
+public class KeyReuseIndexCompactor {
+    private static final Logger log = LogManager.getLogger();
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 2) {
+            log.error("Usage: KeyReuseIndexCompactor base retentionDays");
+            System.exit(1);
+        }
+        final long notBefore = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(Long.parseLong(args[1]));
+        try (final KeyReuseIndex keyReuseIndex = new KeyReuseIndex(args[0])) {
+            final long kept = keyReuseIndex.compact(notBefore);
+            log.info("Compacted {}. {} records were kept.", args[0], kept);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.keys;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only Bloom filter over SHA-256 hashes, backed by a memory-mapped file.
+ * The bit array is never copied onto the heap, so the filter can be consulted
+ * immediately after the file has been mapped and the pages are shared with other
+ * processes through the page cache.
+ * <p>
+ * The file consists of a 24 byte header followed by the bit array stored as
+ * big-endian longs:
+ * <pre>
+ * int  magic (EVBF)
+ * int  number of hash functions
+ * long number of bits (a multiple of 64)
+ * long generation (the same as in the sorted hash file written with it)
+ * long[number of bits / 64] bits
+ * </pre>
+ * Since the keys are SHA-256 hashes, the bit indexes are derived directly from
+ * the first 16 bytes of the key using double hashing.
+ */
+public class MappedBloomFilter implements Closeable {
+    static final int MAGIC = 0x45564246;
+    static final int HEADER_LENGTH = 24;
+    private final MappedByteBuffer buffer;
+    private final int numberOfHashFunctions;
+    private final long numberOfBits;
+    private final long generation;
+
+    private MappedBloomFilter(final MappedByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_LENGTH || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a Bloom filter file.");
+        }
+        this.buffer = buffer;
+        this.numberOfHashFunctions = buffer.getInt(4);
+        this.numberOfBits = buffer.getLong(8);
+        this.generation = buffer.getLong(16);
+        if (numberOfHashFunctions <= 0 || numberOfBits <= 0 || numberOfBits % 64 != 0
+                || HEADER_LENGTH + numberOfBits / 8 != buffer.capacity()) {
+            throw new IOException("The Bloom filter file is truncated or corrupt.");
+        }
+    }
+
+    public static MappedBloomFilter open(final Path path) throws IOException {
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(String.format("The Bloom filter file %s is larger than 2 GiB.", path));
+            }
+            return new MappedBloomFilter(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return the generation of the list this filter was written for.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Computes the index of a bit in the filter. Shared with the writer so that
+     * the filter is queried in exactly the same way it was built.
+     */
+    static long bitIndex(final long h1, final long h2, final int i, final long numberOfBits) {
+        return ((h1 + i * h2) & Long.MAX_VALUE) % numberOfBits;
+    }
+
+    /**
+     * Check if a hash might be a member of the set.
+     *
+     * @param hash a SHA-256 hash.
+     * @return false if the hash is definitely not in the set, true if it might be.
+     */
+    public boolean mightContain(final byte[] hash) {
+        final long h1 = SortedHashFile.readLong(hash, 0);
+        final long h2 = SortedHashFile.readLong(hash, 8);
+        for (int i = 0; i < numberOfHashFunctions; i++) {
+            final long bitIndex = bitIndex(h1, h2, i, numberOfBits);
+            final long word = buffer.getLong(HEADER_LENGTH + (int) (bitIndex >>> 6) * 8);
+            if ((word & (1L << (bitIndex & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Unmap the file. The filter must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        MappedFiles.unmap(buffer);
+    }
+}
@@ -0,0 +1,155 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.keys;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A sorted set of SHA-256 hashes, backed by a memory-mapped file with fixed-width
+ * records. Lookups are performed using binary search directly on the mapped file,
+ * i.e. the hashes are never copied onto the heap.
+ * <p>
+ * The file consists of a 24 byte header followed by the hashes, sorted in unsigned
+ * lexicographic order without duplicates:
+ * <pre>
+ * int  magic (EVSH)
+ * int  record length (32)
+ * long number of records
+ * long generation (the same as in the Bloom filter written with it)
+ * byte[number of records][32] hashes
+ * </pre>
+ * Files larger than 2 GiB are mapped in segments of 1 GiB.
+ */
+public class SortedHashFile implements Closeable {
+    static final int MAGIC = 0x45565348;
+    static final int HEADER_LENGTH = 24;
+    static final int RECORD_LENGTH = 32;
+    private static final int RECORDS_PER_SEGMENT_SHIFT = 25;
+    private static final long RECORDS_PER_SEGMENT = 1L << RECORDS_PER_SEGMENT_SHIFT;
+    private final MappedByteBuffer[] segments;
+    private final long numberOfRecords;
+    private final long generation;
+
+    private SortedHashFile(final MappedByteBuffer[] segments, final long numberOfRecords, final long generation) {
+        this.segments = segments;
+        this.numberOfRecords = numberOfRecords;
+        this.generation = generation;
+    }
+
+    public static SortedHashFile open(final Path path) throws IOException {
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0, Math.min(channel.size(), HEADER_LENGTH));
+            if (header.capacity() < HEADER_LENGTH || header.getInt(0) != MAGIC
+                    || header.getInt(4) != RECORD_LENGTH) {
+                throw new IOException(String.format("The file %s is not a sorted hash file.", path));
+            }
+            final long numberOfRecords = header.getLong(8);
+            final long generation = header.getLong(16);
+            MappedFiles.unmap(header);
+            if (numberOfRecords < 0 || HEADER_LENGTH + numberOfRecords * RECORD_LENGTH != channel.size()) {
+                throw new IOException(String.format("The sorted hash file %s is truncated or corrupt.", path));
+            }
+            final int numberOfSegments = (int) ((numberOfRecords + RECORDS_PER_SEGMENT - 1) / RECORDS_PER_SEGMENT);
+            final MappedByteBuffer[] segments = new MappedByteBuffer[numberOfSegments];
+            for (int i = 0; i < numberOfSegments; i++) {
+                final long firstRecord = i * RECORDS_PER_SEGMENT;
+                final long recordsInSegment = Math.min(RECORDS_PER_SEGMENT, numberOfRecords - firstRecord);
+                segments[i] = channel.map(MapMode.READ_ONLY, HEADER_LENGTH + firstRecord * RECORD_LENGTH,
+                        recordsInSegment * RECORD_LENGTH);
+            }
+            return new SortedHashFile(segments, numberOfRecords, generation);
+        }
+    }
+
+    /**
+     * Read a big-endian long from a byte array.
+     */
+    static long readLong(final byte[] bytes, final int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (bytes[offset + i] & 0xff);
+        }
+        return result;
+    }
+
+    public long size() {
+        return numberOfRecords;
+    }
+
+    /**
+     * @return the generation of the list this file was written for.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Check if a hash is present in the file.
+     *
+     * @param hash a SHA-256 hash.
+     * @return true if the hash is present, false otherwise.
+     */
+    public boolean contains(final byte[] hash) {
+        long low = 0;
+        long high = numberOfRecords - 1;
+        while (low <= high) {
+            final long middle = (low + high) >>> 1;
+            final int comparison = compareRecord(middle, hash);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int compareRecord(final long recordNumber, final byte[] hash) {
+        final MappedByteBuffer segment = segments[(int) (recordNumber >>> RECORDS_PER_SEGMENT_SHIFT)];
+        final int offset = (int) (recordNumber & (RECORDS_PER_SEGMENT - 1)) * RECORD_LENGTH;
+        for (int i = 0; i < RECORD_LENGTH; i += 8) {
+            final int comparison = Long.compareUnsigned(segment.getLong(offset + i), readLong(hash, i));
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Unmap the file. The hash file must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        for (final MappedByteBuffer segment : segments) {
+            MappedFiles.unmap(segment);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.module;
+
+import java.io.IOException;
+import java.net.IDN;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.ejbca.validator.dns.CaaRecord;
+import org.ejbca.validator.dns.CaaRecordSet;
+import org.ejbca.validator.dns.CaaResolver;
+import org.ejbca.validator.exception.ModuleCreationException;
+import org.ejbca.validator.extraction.data.CertificateData;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.net.InternetDomainName;
+
+/**
+ * Checks that the DNS CAA records of a hostname permit the CA to issue a
+ * certificate for it, as specified in RFC 8659. The relevant record set is
+ * found by climbing the DNS tree from the hostname towards the root, and the
+ * CA is identified by one of the issuer domain names given by the system
+ * property {@value #ISSUER_DOMAINS_PROPERTY}.
+ * <p>
+ * The CAA records of all hostnames in a part and all their parent domains are
+ * looked up concurrently in a single batch, with each shared parent domain
+ * queried only once. Answers are cached according to their TTL by a resolver
+ * shared by all instances of the module. If a lookup fails or times out, the
+ * CA is not permitted to issue.
+ */
+public class CaaPermitsModule implements ValidatorModule {
+    private static final Logger log = LogManager.getLogger(CaaPermitsModule.class);
+    public static final String ISSUER_DOMAINS_PROPERTY = "org.ejbca.validator.caa.issuerDomains";
+    public static final String RESOLVER_PROPERTY = "org.ejbca.validator.caa.resolver";
+    public static final String TIMEOUT_PROPERTY = "org.ejbca.validator.caa.timeout";
+    private static final long DEFAULT_TIMEOUT_MILLIS = 2000;
+    private static final Set<String> KNOWN_TAGS = ImmutableSet.of("issue", "issuewild", "iodef");
+    private static final Map<InetSocketAddress, CaaResolver> resolvers = new ConcurrentHashMap<>();
+    private final String moduleName;
+    private final CaaResolver resolver;
+    private final Set<String> issuerDomains;
+    private final long timeoutMillis;
+
+    public static class CaaPermitsModuleBuilder implements ModuleExecutorBuilder {
+        private boolean okIsFailure;
+        private String moduleName;
+        private List<CertificateData> dataToValidate;
+
+        @Override
+        public ModuleExecutorBuilder okIsFailure(boolean okIsFailure) {
+            this.okIsFailure = okIsFailure;
+            return this;
+        }
+
+        @Override
+        public ModuleExecutorBuilder setModuleName(String moduleName) {
+            this.moduleName = moduleName;
+            return this;
+        }
+
+        @Override
+        public ModuleExecutorBuilder setDataToValidate(final List<CertificateData> dataToValidate) {
+            this.dataToValidate = dataToValidate;
+            return this;
+        }
+
+        @Override
+        public void prepare() {
+            createModule();
+        }
+
+        @Override
+        public ModuleExecutor build() {
+            return new ModuleExecutor(createModule(), dataToValidate, okIsFailure);
+        }
+
+        private CaaPermitsModule createModule() {
+            final String issuerDomains = System.getProperty(ISSUER_DOMAINS_PROPERTY);
+            if (issuerDomains == null || issuerDomains.trim().isEmpty()) {
+                throw new ModuleCreationException(String.format(
+                        "The module %s requires the system property %s to be set.", moduleName,
+                        ISSUER_DOMAINS_PROPERTY));
+            }
+            final InetSocketAddress resolverAddress;
+            try {
+                final String resolver = System.getProperty(RESOLVER_PROPERTY);
+                resolverAddress = resolver == null
+                        ? CaaResolver.systemResolverAddress()
+                        : CaaResolver.parseAddress(resolver);
+            } catch (final IOException | IllegalArgumentException e) {
+                throw new ModuleCreationException(String.format(
+                        "The module %s could not determine the address of the resolver. %s", moduleName,
+                        e.getMessage()));
+            }
+            final long timeoutMillis;
+            try {
+                timeoutMillis = Long.parseLong(
+                        System.getProperty(TIMEOUT_PROPERTY, Long.toString(DEFAULT_TIMEOUT_MILLIS)));
+                if (timeoutMillis <= 0) {
+                    throw new NumberFormatException();
+                }
+            } catch (final NumberFormatException e) {
+                throw new ModuleCreationException(String.format(
+                        "The system property %s must be a positive number of milliseconds.", TIMEOUT_PROPERTY));
+            }
+            return new CaaPermitsModule(moduleName, resolvers.computeIfAbsent(resolverAddress, CaaResolver::new),
+                    Arrays.stream(issuerDomains.split(","))
+                        .map(issuerDomain -> issuerDomain.trim().toLowerCase(Locale.ROOT))
+                        .collect(Collectors.toSet()),
+                    timeoutMillis);
+        }
+    }
+
+    public static CaaPermitsModuleBuilder builder() {
+        return new CaaPermitsModuleBuilder();
+    }
+
+    public CaaPermitsModule(final String moduleName, final CaaResolver resolver, final Set<String> issuerDomains,
+            final long timeoutMillis) {
+        this.moduleName = moduleName;
+        this.resolver = resolver;
+        this.issuerDomains = issuerDomains;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public Map<String, Boolean> validate(final CertificateData certificateData, final Deadline deadline) {
+        final List<String> dataItems = certificateData.getDataItems();
+        final Map<String, List<String>> treeOfDataItem = new HashMap<>();
+        final Set<String> domains = new LinkedHashSet<>();
+        for (final String dataItem : dataItems) {
+            final List<String> tree = toDnsTree(dataItem);
+            treeOfDataItem.put(dataItem, tree);
+            domains.addAll(tree);
+        }
+        final long timeoutNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(timeoutMillis), deadline.remainingNanos());
+        final Map<String, CaaRecordSet> recordSets = resolver.lookup(domains, timeoutNanos);
+        return ValidatorModule.validateEach(certificateData, deadline, dataItem -> {
+            final List<String> tree = treeOfDataItem.get(dataItem);
+            return !tree.isEmpty() && isPermitted(dataItem, tree, recordSets);
+        });
+    }
+
+    /**
+     * Get the domain names to look up for a hostname, starting with the hostname
+     * itself and followed by each parent domain, excluding the root. A wildcard
+     * hostname is looked up as the domain below the wildcard.
+     *
+     * @return the domain names, or an empty list if the hostname is invalid.
+     */
+    private static List<String> toDnsTree(final String hostname) {
+        final List<String> tree = new ArrayList<>();
+        String domain = hostname.startsWith("*.") ? hostname.substring(2) : hostname;
+        if (domain.endsWith(".")) {
+            domain = domain.substring(0, domain.length() - 1);
+        }
+        try {
+            domain = IDN.toASCII(domain).toLowerCase(Locale.ROOT);
+        } catch (final IllegalArgumentException e) {
+            return tree;
+        }
+        if (!InternetDomainName.isValid(domain)) {
+            return tree;
+        }
+        tree.add(domain);
+        for (int dot = domain.indexOf('.'); dot >= 0; dot = domain.indexOf('.', dot + 1)) {
+            tree.add(domain.substring(dot + 1));
+        }
+        return tree;
+    }
+
+    private boolean isPermitted(final String hostname, final List<String> tree,
+            final Map<String, CaaRecordSet> recordSets) {
+        for (final String domain : tree) {
+            final CaaRecordSet recordSet = recordSets.get(domain);
+            if (recordSet.isFailure()) {
+                log.info("The CAA lookup of {} for {} failed. {}", domain, hostname, recordSet.getFailure());
+                return false;
+            }
+            if (!recordSet.isEmpty()) {
+                return isPermittedBy(recordSet.getRecords(), hostname.startsWith("*."));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if the relevant CAA record set permits issuance, as specified in
+     * section 4 of RFC 8659.
+     */
+    private boolean isPermittedBy(final List<CaaRecord> records, final boolean isWildcard) {
+        final List<CaaRecord> issue = new ArrayList<>();
+        final List<CaaRecord> issueWild = new ArrayList<>();
+        for (final CaaRecord record : records) {
+            if (record.isCritical() && !KNOWN_TAGS.contains(record.getTag())) {
+                return false;
+            }
+            if ("issue".equals(record.getTag())) {
+                issue.add(record);
+            } else if ("issuewild".equals(record.getTag())) {
+                issueWild.add(record);
+            }
+        }
+        final List<CaaRecord> properties = isWildcard && !issueWild.isEmpty() ? issueWild : issue;
+        if (properties.isEmpty()) {
+            return true;
+        }
+        return properties.stream().anyMatch(record -> issuerDomains.contains(toIssuerDomain(record.getValue())));
+    }
+
+    /**
+     * Get the issuer domain name of an issue or issuewild property, i.e. the
+     * value up to the first parameter. An empty issuer domain name matches no CA.
+     */
+    private static String toIssuerDomain(final String value) {
+        final int semicolon = value.indexOf(';');
+        return (semicolon < 0 ? value : value.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public String getModuleName() {
+        return moduleName;
+    }
+}
@@ -0,0 +1,103 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.module;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Keeps data files opened by modules, such as lists of compromised keys, open
+ * across validations. Each file is opened once, the first time it is requested,
+ * and closed when the cache is closed. A cache is never refreshed; to pick up a
+ * new version of a file, create a new cache and close the old one when it is no
+ * longer used.
+ */
+public class DataFileCache implements Closeable {
+    private static final Logger log = LogManager.getLogger(DataFileCache.class);
+    private final Map<String, Closeable> dataFiles = new LinkedHashMap<>();
+    private final Set<Path> watchedPaths = new LinkedHashSet<>();
+    private boolean closed;
+
+    public interface Opener<T extends Closeable> {
+        T open(String path) throws IOException;
+    }
+
+    /**
+     * Get a data file, opening it if it has not been opened before.
+     *
+     * @param path the path given to the opener, also used as the key of the cache.
+     * @param type the type of the data file.
+     * @param opener the function used to open the data file.
+     * @param watchedPaths the files which are replaced when a new version of the data
+     *        file is installed, and should trigger a reload when changed. Files
+     *        written by the validator itself must not be included, since every
+     *        validation would then trigger a reload.
+     * @return the data file.
+     * @throws IOException if the data file could not be opened.
+     */
+    public synchronized <T extends Closeable> T get(final String path, final Class<T> type, final Opener<T> opener,
+            final Collection<Path> watchedPaths) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("The data file cache has been closed.");
+        }
+        final Closeable dataFile = dataFiles.get(path);
+        if (dataFile != null) {
+            return type.cast(dataFile);
+        }
+        final T newDataFile = opener.open(path);
+        dataFiles.put(path, newDataFile);
+        watchedPaths.forEach(watchedPath -> this.watchedPaths.add(watchedPath.toAbsolutePath().normalize()));
+        return newDataFile;
+    }
+
+    /**
+     * @return the absolute and normalized paths of the files to watch for changes,
+     *         for all data files opened so far.
+     */
+    public synchronized Set<Path> getWatchedPaths() {
+        return ImmutableSet.copyOf(watchedPaths);
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (final Map.Entry<String, Closeable> dataFile : dataFiles.entrySet()) {
+            try {
+                dataFile.getValue().close();
+            } catch (final IOException e) {
+                log.warn("Could not close the data file {}. {}", dataFile.getKey(), e.getMessage());
+            }
+        }
+        dataFiles.clear();
+    }
+}
@@ -0,0 +1,120 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.module;
+
+import java.util.concurrent.TimeUnit;
+
+import org.ejbca.validator.exception.DeadlineExceededException;
+
+/**
+ * A point in time when validation must have finished. Modules check the deadline
+ * cooperatively, typically before each data item, so that a slow module fails
+ * with a {@link DeadlineExceededException} naming the module, the part and how
+ * far it got, instead of being killed by EJBCA without any diagnostics.
+ * <p>
+ * A deadline can be narrowed for a single module using
+ * {@link #forModule(String, long)}, in which case the module must finish within
+ * its own time budget as well as within the overall deadline.
+ */
+public class Deadline {
+    private static final Deadline NONE = new Deadline(false, 0, 0, null, false);
+    private final boolean limited;
+    private final long expiresAt;
+    private final long millis;
+    private final String moduleName;
+    private final boolean isModuleBudget;
+
+    private Deadline(final boolean limited, final long expiresAt, final long millis, final String moduleName,
+            final boolean isModuleBudget) {
+        this.limited = limited;
+        this.expiresAt = expiresAt;
+        this.millis = millis;
+        this.moduleName = moduleName;
+        this.isModuleBudget = isModuleBudget;
+    }
+
+    /**
+     * A deadline which never expires.
+     */
+    public static Deadline none() {
+        return NONE;
+    }
+
+    /**
+     * A deadline which expires the given number of milliseconds from now.
+     */
+    public static Deadline after(final long millis) {
+        return new Deadline(true, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis), millis, null, false);
+    }
+
+    /**
+     * Narrow this deadline for the execution of a module.
+     *
+     * @param moduleName the name of the module, used when reporting that the
+     *        deadline was exceeded.
+     * @param budgetMillis the time budget of the module in milliseconds, starting
+     *        now, or 0 if the module has no budget of its own.
+     * @return a deadline which expires when either this deadline or the budget of
+     *         the module expires, whichever comes first.
+     */
+    public Deadline forModule(final String moduleName, final long budgetMillis) {
+        if (budgetMillis > 0) {
+            final long budgetExpiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+            if (!limited || budgetExpiresAt - expiresAt < 0) {
+                return new Deadline(true, budgetExpiresAt, budgetMillis, moduleName, true);
+            }
+        }
+        return new Deadline(limited, expiresAt, millis, moduleName, false);
+    }
+
+    /**
+     * Get the time left until the deadline expires.
+     *
+     * @return the number of nanoseconds left, or {@link Long#MAX_VALUE} if the
+     *         deadline never expires.
+     */
+    public long remainingNanos() {
+        return limited ? Math.max(0, expiresAt - System.nanoTime()) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Throw an exception if the deadline has expired.
+     *
+     * @param partName the part being validated.
+     * @param itemsDone the number of data items validated so far.
+     * @param itemsTotal the total number of data items in the part.
+     * @throws DeadlineExceededException if the deadline has expired.
+     */
+    public void check(final String partName, final int itemsDone, final int itemsTotal) {
+        if (!limited || System.nanoTime() - expiresAt < 0) {
+            return;
+        }
+        if (isModuleBudget) {
+            throw new DeadlineExceededException(String.format(
+                    "Module %s exceeded its time budget of %d ms while validating part %s after %d of %d data items.",
+                    moduleName, millis, partName, itemsDone, itemsTotal));
+        }
+        throw new DeadlineExceededException(String.format(
+                "Validation deadline of %d ms exceeded in module %s while validating part %s after %d of %d data items.",
+                millis, moduleName, partName, itemsDone, itemsTotal));
+    }
+}
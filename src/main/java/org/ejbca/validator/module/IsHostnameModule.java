@@ -21,10 +21,8 @@
 
 package org.ejbca.validator.module;
 
-import java.util.AbstractMap.SimpleEntry;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 import org.ejbca.validator.extraction.data.CertificateData;
 
@@ -71,11 +69,8 @@ public class IsHostnameModule implements ValidatorModule {
     }
 
     @Override
-    public Map<String, Boolean> validate(final CertificateData certificateData) {
-        return certificateData.getDataItems()
-                .stream()
-                .map(dataItem -> new SimpleEntry<String, Boolean>(dataItem, InternetDomainName.isValid(dataItem)))
-                .collect(Collectors.toMap(SimpleEntry::getKey, SimpleEntry::getValue));
+    public Map<String, Boolean> validate(final CertificateData certificateData, final Deadline deadline) {
+        return ValidatorModule.validateEach(certificateData, deadline, InternetDomainName::isValid);
     }
 
     @Override
@@ -36,19 +36,46 @@ public class ModuleExecutor {
     private final ValidatorModule module;
     private final List<CertificateData> dataToValidate;
     private final boolean okIsFailure;
+    private final long timeBudgetMillis;
 
     public ModuleExecutor(final ValidatorModule module, final List<CertificateData> dataToValidate,
             final boolean okIsFailure) {
+        this(module, dataToValidate, okIsFailure, 0);
+    }
+
+    private ModuleExecutor(final ValidatorModule module, final List<CertificateData> dataToValidate,
+            final boolean okIsFailure, final long timeBudgetMillis) {
         this.module = module;
         this.dataToValidate = dataToValidate;
         this.okIsFailure = okIsFailure;
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    /**
+     * Create a copy of this module executor which must finish within the given
+     * number of milliseconds.
+     *
+     * @param timeBudgetMillis the time budget of the module in milliseconds, or 0
+     *        if the module is only limited by the overall deadline.
+     */
+    public ModuleExecutor withTimeBudget(final long timeBudgetMillis) {
+        return new ModuleExecutor(module, dataToValidate, okIsFailure, timeBudgetMillis);
+    }
+
+    /**
+     * @return the name of the module prefixed with its mode, e.g. +isHostname.
+     */
+    public String getModuleName() {
+        return (okIsFailure ? "-" : "+") + module.getModuleName();
     }
 
-    public boolean execute() {
+    public boolean execute(final Deadline deadline) {
+        final String moduleName = getModuleName();
+        final Deadline moduleDeadline = deadline.forModule(moduleName, timeBudgetMillis);
         for (final CertificateData certificateData : dataToValidate) {
             log.debug("Validating {} data '{}' in certificate using {} module", certificateData.getPartName(),
-                    certificateData.getDataItems(), (okIsFailure ? "-" : "+") + module.getModuleName());
-            final Map<String, Boolean> validationResults = module.validate(certificateData);
+                    certificateData.getDataItems(), moduleName);
+            final Map<String, Boolean> validationResults = module.validate(certificateData, moduleDeadline);
             log.debug("Validation results: {}{}", System.lineSeparator(), getYaml().dump(validationResults));
             final boolean validationOk = validationResults
                     .entrySet()
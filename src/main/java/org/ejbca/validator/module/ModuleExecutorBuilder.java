@@ -23,6 +23,8 @@ package org.ejbca.validator.module;
 
 import java.util.List;
 
+import org.ejbca.validator.exception.ModuleCreationException;
+import org.ejbca.validator.extraction.CertificateDataExtractor;
 import org.ejbca.validator.extraction.data.CertificateData;
 
 public interface ModuleExecutorBuilder {
@@ -32,5 +34,32 @@ public interface ModuleExecutorBuilder {
 
     public ModuleExecutorBuilder setDataToValidate(List<CertificateData> dataToValidate);
 
+    /**
+     * Give the module access to other parts of the certificate than the ones it
+     * should validate. Modules which only look at the data to validate can ignore
+     * this.
+     */
+    public default ModuleExecutorBuilder setCertificateDataExtractor(CertificateDataExtractor certificateDataExtractor) {
+        return this;
+    }
+
+    /**
+     * Give the module a cache to keep its data files in. If no cache is set, the
+     * module opens its data files each time it is built.
+     */
+    public default ModuleExecutorBuilder setDataFileCache(DataFileCache dataFileCache) {
+        return this;
+    }
+
+    /**
+     * Load everything the module needs which does not depend on the certificate,
+     * e.g. open its data files, so that errors are detected before the module is
+     * used. Modules without any data files can ignore this.
+     *
+     * @throws ModuleCreationException if the module could not be prepared.
+     */
+    public default void prepare() {
+    }
+
     public ModuleExecutor build();
 }
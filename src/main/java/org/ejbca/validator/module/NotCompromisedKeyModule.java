@@ -0,0 +1,131 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.module;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.ejbca.validator.exception.ModuleCreationException;
+import org.ejbca.validator.extraction.data.CertificateData;
+import org.ejbca.validator.keys.CompromisedKeyList;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Checks that the SHA-256 hash of a public key is not present in a list of known
+ * compromised keys, e.g. Debian weak keys or leaked private keys. The location of
+ * the list is given by the system property {@value #COMPROMISED_KEYS_PROPERTY}.
+ */
+public class NotCompromisedKeyModule implements ValidatorModule {
+    public static final String COMPROMISED_KEYS_PROPERTY = "org.ejbca.validator.compromisedKeys";
+    private final String moduleName;
+    private final CompromisedKeyList compromisedKeyList;
+
+    public static class NotCompromisedKeyModuleBuilder implements ModuleExecutorBuilder {
+        private boolean okIsFailure;
+        private String moduleName;
+        private List<CertificateData> dataToValidate;
+        private DataFileCache dataFileCache;
+
+        @Override
+        public ModuleExecutorBuilder okIsFailure(boolean okIsFailure) {
+            this.okIsFailure = okIsFailure;
+            return this;
+        }
+
+        @Override
+        public ModuleExecutorBuilder setModuleName(String moduleName) {
+            this.moduleName = moduleName;
+            return this;
+        }
+
+        @Override
+        public ModuleExecutorBuilder setDataToValidate(final List<CertificateData> dataToValidate) {
+            this.dataToValidate = dataToValidate;
+            return this;
+        }
+
+        @Override
+        public ModuleExecutorBuilder setDataFileCache(final DataFileCache dataFileCache) {
+            this.dataFileCache = dataFileCache;
+            return this;
+        }
+
+        @Override
+        public void prepare() {
+            openCompromisedKeyList();
+        }
+
+        @Override
+        public ModuleExecutor build() {
+            return new ModuleExecutor(new NotCompromisedKeyModule(moduleName, openCompromisedKeyList()),
+                    dataToValidate, okIsFailure);
+        }
+
+        private CompromisedKeyList openCompromisedKeyList() {
+            final String base = System.getProperty(COMPROMISED_KEYS_PROPERTY);
+            if (base == null) {
+                throw new ModuleCreationException(String.format(
+                        "The module %s requires the system property %s to be set.", moduleName,
+                        COMPROMISED_KEYS_PROPERTY));
+            }
+            try {
+                return dataFileCache == null
+                        ? CompromisedKeyList.open(base)
+                        : dataFileCache.get(base, CompromisedKeyList.class, CompromisedKeyList::open,
+                                CompromisedKeyList.getPaths(base));
+            } catch (final IOException e) {
+                throw new ModuleCreationException(
+                        String.format("Could not open the list of compromised keys %s. %s", base, e.getMessage()));
+            }
+        }
+    }
+
+    public static NotCompromisedKeyModuleBuilder builder() {
+        return new NotCompromisedKeyModuleBuilder();
+    }
+
+    public NotCompromisedKeyModule(final String moduleName, final CompromisedKeyList compromisedKeyList) {
+        this.moduleName = moduleName;
+        this.compromisedKeyList = compromisedKeyList;
+    }
+
+    @Override
+    public Map<String, Boolean> validate(final CertificateData certificateData, final Deadline deadline) {
+        return ValidatorModule.validateEach(certificateData, deadline, this::isNotCompromised);
+    }
+
+    private boolean isNotCompromised(final String spkiHash) {
+        final BaseEncoding hex = BaseEncoding.base16().lowerCase();
+        if (!hex.canDecode(spkiHash)) {
+            return false;
+        }
+        final byte[] hash = hex.decode(spkiHash);
+        return hash.length == 32 && !compromisedKeyList.isCompromised(hash);
+    }
+
+    @Override
+    public String getModuleName() {
+        return moduleName;
+    }
+}
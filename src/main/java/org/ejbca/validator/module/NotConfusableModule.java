@@ -0,0 +1,213 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.module;
+
+import java.io.IOException;
+import java.lang.Character.UnicodeScript;
+import java.net.IDN;
+import java.text.Normalizer;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.ejbca.validator.confusables.ConfusablesTable;
+import org.ejbca.validator.confusables.ProtectedSkeletons;
+import org.ejbca.validator.exception.ModuleCreationException;
+import org.ejbca.validator.extraction.data.CertificateData;
+
+/**
+ * Checks that no label of a hostname is a mix of scripts which could be used to
+ * spoof another name, or confusable with one of the protected brands. A-labels
+ * are converted to Unicode before the check is performed.
+ * <p>
+ * Labels are considered confusable as defined in Unicode Technical Standard #39,
+ * i.e. if the skeleton of the label is equal to the skeleton of a protected
+ * brand. Both the confusables table and the skeletons of the protected brands are
+ * compiled ahead of time into resources by
+ * {@link org.ejbca.validator.confusables.ConfusablesCompiler}.
+ */
+public class NotConfusableModule implements ValidatorModule {
+    private static final Logger log = LogManager.getLogger(NotConfusableModule.class);
+    private static final int LATIN = 1;
+    private static final int HAN = 1 << 1;
+    private static final int HIRAGANA = 1 << 2;
+    private static final int KATAKANA = 1 << 3;
+    private static final int BOPOMOFO = 1 << 4;
+    private static final int HANGUL = 1 << 5;
+    private static ConfusablesTable sharedConfusablesTable;
+    private static ProtectedSkeletons sharedProtectedSkeletons;
+    private final String moduleName;
+    private final ConfusablesTable confusablesTable;
+    private final ProtectedSkeletons protectedSkeletons;
+
+    public static class NotConfusableModuleBuilder implements ModuleExecutorBuilder {
+        private boolean okIsFailure;
+        private String moduleName;
+        private List<CertificateData> dataToValidate;
+
+        @Override
+        public ModuleExecutorBuilder okIsFailure(boolean okIsFailure) {
+            this.okIsFailure = okIsFailure;
+            return this;
+        }
+
+        @Override
+        public ModuleExecutorBuilder setModuleName(String moduleName) {
+            this.moduleName = moduleName;
+            return this;
+        }
+
+        @Override
+        public ModuleExecutorBuilder setDataToValidate(final List<CertificateData> dataToValidate) {
+            this.dataToValidate = dataToValidate;
+            return this;
+        }
+
+        @Override
+        public void prepare() {
+            loadConfusablesData();
+        }
+
+        @Override
+        public ModuleExecutor build() {
+            synchronized (NotConfusableModule.class) {
+                loadConfusablesData();
+                return new ModuleExecutor(
+                        new NotConfusableModule(moduleName, sharedConfusablesTable, sharedProtectedSkeletons),
+                        dataToValidate, okIsFailure);
+            }
+        }
+    }
+
+    /**
+     * Load the confusables data once. The data is compiled into the jar and never
+     * changes, so it is shared by all instances of the module.
+     */
+    private static synchronized void loadConfusablesData() {
+        if (sharedConfusablesTable != null) {
+            return;
+        }
+        try {
+            sharedProtectedSkeletons = ProtectedSkeletons.load();
+            sharedConfusablesTable = ConfusablesTable.load();
+        } catch (final IOException e) {
+            throw new ModuleCreationException(
+                    String.format("Could not load the confusables data. %s", e.getMessage()));
+        }
+        if (sharedConfusablesTable.size() < ConfusablesTable.COMPLETE_TABLE_MINIMUM_SIZE) {
+            log.warn("The confusables table only has {} mappings, which means cert-validator was built with an "
+                    + "excerpt of the confusables data. Run 'gradle updateConfusables' and rebuild to use the "
+                    + "complete data.", sharedConfusablesTable.size());
+        }
+    }
+
+    public static NotConfusableModuleBuilder builder() {
+        return new NotConfusableModuleBuilder();
+    }
+
+    public NotConfusableModule(final String moduleName, final ConfusablesTable confusablesTable,
+            final ProtectedSkeletons protectedSkeletons) {
+        this.moduleName = moduleName;
+        this.confusablesTable = confusablesTable;
+        this.protectedSkeletons = protectedSkeletons;
+    }
+
+    @Override
+    public Map<String, Boolean> validate(final CertificateData certificateData, final Deadline deadline) {
+        return ValidatorModule.validateEach(certificateData, deadline, this::isNotConfusable);
+    }
+
+    private boolean isNotConfusable(final String hostname) {
+        for (final String label : hostname.split("\\.")) {
+            final String unicodeLabel = IDN.toUnicode(label, IDN.ALLOW_UNASSIGNED).toLowerCase(Locale.ROOT);
+            final String nfd = Normalizer.normalize(unicodeLabel, Normalizer.Form.NFD);
+            if (isMixedScript(nfd)) {
+                return false;
+            }
+            if (protectedSkeletons.isConfusable(ConfusablesTable.literalHash(nfd), confusablesTable.skeletonHash(nfd))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if a label mixes scripts in a way not allowed by the "Highly
+     * Restrictive" level of Unicode Technical Standard #39. Characters common to
+     * all scripts, such as digits and hyphens, are ignored. Apart from single-script
+     * labels, Latin may only be combined with the scripts used for Chinese,
+     * Japanese and Korean.
+     */
+    private static boolean isMixedScript(final String label) {
+        int combinableScripts = 0;
+        UnicodeScript otherScript = null;
+        for (int i = 0; i < label.length();) {
+            final int codePoint = label.codePointAt(i);
+            i += Character.charCount(codePoint);
+            final UnicodeScript script = UnicodeScript.of(codePoint);
+            if (script == UnicodeScript.COMMON || script == UnicodeScript.INHERITED) {
+                continue;
+            }
+            final int combinableScript = toCombinableScript(script);
+            if (combinableScript == 0) {
+                if (otherScript != null && otherScript != script) {
+                    return true;
+                }
+                otherScript = script;
+            }
+            combinableScripts |= combinableScript;
+        }
+        if (otherScript != null) {
+            return combinableScripts != 0;
+        }
+        return Integer.bitCount(combinableScripts) > 1
+                && (combinableScripts & ~(LATIN | HAN | HIRAGANA | KATAKANA)) != 0
+                && (combinableScripts & ~(LATIN | HAN | BOPOMOFO)) != 0
+                && (combinableScripts & ~(LATIN | HAN | HANGUL)) != 0;
+    }
+
+    private static int toCombinableScript(final UnicodeScript script) {
+        switch (script) {
+        case LATIN:
+            return LATIN;
+        case HAN:
+            return HAN;
+        case HIRAGANA:
+            return HIRAGANA;
+        case KATAKANA:
+            return KATAKANA;
+        case BOPOMOFO:
+            return BOPOMOFO;
+        case HANGUL:
+            return HANGUL;
+        default:
+            return 0;
+        }
+    }
+
+    @Override
+    public String getModuleName() {
+        return moduleName;
+    }
+}
@@ -0,0 +1,197 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.module;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.ejbca.validator.exception.CertificateExtractionException;
+import org.ejbca.validator.exception.ModuleCreationException;
+import org.ejbca.validator.extraction.CertificateDataExtractor;
+import org.ejbca.validator.extraction.data.CertificateData;
+import org.ejbca.validator.keys.KeyReuseIndex;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Checks that a public key has not previously been used with a different subject.
+ * Every key which passes the check is recorded together with the subject of the
+ * certificate in a {@link KeyReuseIndex}, whose location is given by the system
+ * property {@value #KEY_REUSE_INDEX_PROPERTY}. The module should be placed last,
+ * since it records the key as soon as it is run, and modules are not run after
+ * the first failure.
+ * <p>
+ * The subject is identified by the subject DN. A certificate with an empty subject
+ * DN is identified by its dNSNames instead, and a certificate with neither fails
+ * the check, since every such certificate would otherwise share the same subject.
+ * The dNSNames are not used when there is a subject DN, since that would flag a
+ * renewal changing the dNSNames as key reuse, and would not match the subjects
+ * already recorded in the index.
+ */
+public class NotReusedKeyModule implements ValidatorModule {
+    private static final Logger log = LogManager.getLogger(NotReusedKeyModule.class);
+    public static final String KEY_REUSE_INDEX_PROPERTY = "org.ejbca.validator.keyReuseIndex";
+    private final String moduleName;
+    private final KeyReuseIndex keyReuseIndex;
+    private final String subject;
+
+    public static class NotReusedKeyModuleBuilder implements ModuleExecutorBuilder {
+        private boolean okIsFailure;
+        private String moduleName;
+        private List<CertificateData> dataToValidate;
+        private CertificateDataExtractor certificateDataExtractor;
+        private DataFileCache dataFileCache;
+
+        @Override
+        public ModuleExecutorBuilder okIsFailure(boolean okIsFailure) {
+            this.okIsFailure = okIsFailure;
+            return this;
+        }
+
+        @Override
+        public ModuleExecutorBuilder setModuleName(String moduleName) {
+            this.moduleName = moduleName;
+            return this;
+        }
+
+        @Override
+        public ModuleExecutorBuilder setDataToValidate(final List<CertificateData> dataToValidate) {
+            this.dataToValidate = dataToValidate;
+            return this;
+        }
+
+        @Override
+        public ModuleExecutorBuilder setCertificateDataExtractor(
+                final CertificateDataExtractor certificateDataExtractor) {
+            this.certificateDataExtractor = certificateDataExtractor;
+            return this;
+        }
+
+        @Override
+        public ModuleExecutorBuilder setDataFileCache(final DataFileCache dataFileCache) {
+            this.dataFileCache = dataFileCache;
+            return this;
+        }
+
+        @Override
+        public void prepare() {
+            openKeyReuseIndex();
+        }
+
+        @Override
+        public ModuleExecutor build() {
+            final KeyReuseIndex keyReuseIndex = openKeyReuseIndex();
+            return new ModuleExecutor(new NotReusedKeyModule(moduleName, keyReuseIndex, extractSubject()),
+                    dataToValidate, okIsFailure);
+        }
+
+        /**
+         * @return the subject DN, or the sorted dNSNames if the subject DN is empty, or
+         *         null if the certificate has neither.
+         */
+        private String extractSubject() {
+            final String subjectDn = certificateDataExtractor.extractData("DN").getDataItems().get(0);
+            if (!Strings.isNullOrEmpty(subjectDn)) {
+                return subjectDn;
+            }
+            final List<String> dnsNames;
+            try {
+                dnsNames = new ArrayList<>(certificateDataExtractor.extractData("DNS").getDataItems());
+            } catch (final CertificateExtractionException e) {
+                return null;
+            }
+            Collections.sort(dnsNames);
+            return "dNSName:" + Joiner.on(",dNSName:").join(dnsNames);
+        }
+
+        private KeyReuseIndex openKeyReuseIndex() {
+            final String base = System.getProperty(KEY_REUSE_INDEX_PROPERTY);
+            if (base == null) {
+                throw new ModuleCreationException(String.format(
+                        "The module %s requires the system property %s to be set.", moduleName,
+                        KEY_REUSE_INDEX_PROPERTY));
+            }
+            if (dataFileCache == null) {
+                return new KeyReuseIndex(base);
+            }
+            try {
+                // The index is written by the validator itself, so changes must not trigger a reload
+                return dataFileCache.get(base, KeyReuseIndex.class, KeyReuseIndex::new, ImmutableSet.of());
+            } catch (final IOException e) {
+                throw new ModuleCreationException(
+                        String.format("Could not open the key reuse index %s. %s", base, e.getMessage()));
+            }
+        }
+    }
+
+    public static NotReusedKeyModuleBuilder builder() {
+        return new NotReusedKeyModuleBuilder();
+    }
+
+    /**
+     * @param subject the subject of the certificate, or null if the certificate has
+     *        no subject, in which case every key fails the check.
+     */
+    public NotReusedKeyModule(final String moduleName, final KeyReuseIndex keyReuseIndex, final String subject) {
+        this.moduleName = moduleName;
+        this.keyReuseIndex = keyReuseIndex;
+        this.subject = subject;
+    }
+
+    @Override
+    public Map<String, Boolean> validate(final CertificateData certificateData, final Deadline deadline) {
+        return ValidatorModule.validateEach(certificateData, deadline, this::isNotReused);
+    }
+
+    private boolean isNotReused(final String spkiHash) {
+        final BaseEncoding hex = BaseEncoding.base16().lowerCase();
+        if (!hex.canDecode(spkiHash) || spkiHash.length() != 64) {
+            return false;
+        }
+        if (subject == null) {
+            log.info("The certificate has neither a subject DN nor any dNSNames, so the key cannot be recorded.");
+            return false;
+        }
+        final byte[] subjectHash = Hashing.sha256().hashString(subject, StandardCharsets.UTF_8).asBytes();
+        try {
+            return !keyReuseIndex.checkAndRecord(hex.decode(spkiHash), subjectHash);
+        } catch (final IOException e) {
+            log.error("Could not check the key reuse index. {}", e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public String getModuleName() {
+        return moduleName;
+    }
+}
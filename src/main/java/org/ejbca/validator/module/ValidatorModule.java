@@ -21,7 +21,11 @@
 
 package org.ejbca.validator.module;
 
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import org.ejbca.validator.extraction.data.CertificateData;
 
@@ -29,15 +33,54 @@ import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableMap;
 
 public interface ValidatorModule {
-    static final ImmutableMap<String, ModuleExecutorBuilder> modules = new ImmutableMap.Builder<String, ModuleExecutorBuilder>().
-            put("isHostname", IsHostnameModule.builder()).
+    static final ImmutableMap<String, Supplier<ModuleExecutorBuilder>> modules = new ImmutableMap.Builder<String, Supplier<ModuleExecutorBuilder>>().
+            put("caaPermits", CaaPermitsModule::builder).
+            put("isHostname", IsHostnameModule::builder).
+            put("notCompromisedKey", NotCompromisedKeyModule::builder).
+            put("notConfusable", NotConfusableModule::builder).
+            put("notReusedKey", NotReusedKeyModule::builder).
             build();
 
+    /**
+     * Create a new builder for a module. Each call returns a new builder, so
+     * modules can be created concurrently.
+     */
     static Optional<ModuleExecutorBuilder> create(final String moduleName) {
-        return Optional.fromNullable(modules.get(moduleName));
+        final Supplier<ModuleExecutorBuilder> builder = modules.get(moduleName);
+        return builder == null ? Optional.absent() : Optional.of(builder.get());
     }
 
-    Map<String, Boolean> validate(CertificateData part);
+    /**
+     * Validate the data items of a part of the certificate.
+     *
+     * @param part the part of the certificate to validate.
+     * @param deadline the deadline of the module, which should be checked before
+     *        each data item, and in any other place where the module could spend a
+     *        significant amount of time.
+     * @return the result of the validation of each data item.
+     */
+    Map<String, Boolean> validate(CertificateData part, Deadline deadline);
+
+    /**
+     * Validate each data item of a part on its own, checking the deadline before
+     * each data item.
+     *
+     * @param part the part of the certificate to validate.
+     * @param deadline the deadline of the module.
+     * @param isValid the check of a single data item.
+     * @return the result of the validation of each data item.
+     */
+    static Map<String, Boolean> validateEach(final CertificateData part, final Deadline deadline,
+            final Predicate<String> isValid) {
+        final List<String> dataItems = part.getDataItems();
+        final Map<String, Boolean> validationResults = new HashMap<>();
+        for (int i = 0; i < dataItems.size(); i++) {
+            deadline.check(part.getPartName(), i, dataItems.size());
+            final String dataItem = dataItems.get(i);
+            validationResults.put(dataItem, isValid.test(dataItem));
+        }
+        return validationResults;
+    }
 
     String getModuleName();
 }
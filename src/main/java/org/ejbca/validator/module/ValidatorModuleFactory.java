@@ -34,14 +34,65 @@ import com.google.common.base.Optional;
 
 public class ValidatorModuleFactory {
     private final X509CertificateDataExtractor certificateDataExtractor;
+    private final DataFileCache dataFileCache;
 
     public ValidatorModuleFactory(final X509CertificateDataExtractor certificateDataExtractor) {
+        this(certificateDataExtractor, null);
+    }
+
+    /**
+     * Create a factory whose modules keep their data files in a cache, instead of
+     * opening them each time a module is created.
+     */
+    public ValidatorModuleFactory(final X509CertificateDataExtractor certificateDataExtractor,
+            final DataFileCache dataFileCache) {
         this.certificateDataExtractor = certificateDataExtractor;
+        this.dataFileCache = dataFileCache;
     }
 
     public List<ModuleExecutor> fromCommandLine(final List<String> args) {
         final List<ModuleExecutor> moduleExecutors = new ArrayList<>();
         for (final String arg : args) {
+            final ModuleSpecification moduleSpecification = ModuleSpecification.parse(arg);
+            final ModuleExecutor moduleExecutor = moduleSpecification.createBuilder(dataFileCache)
+                .setDataToValidate(extractPartsFromCertificate(moduleSpecification.parts))
+                .setCertificateDataExtractor(certificateDataExtractor)
+                .build()
+                .withTimeBudget(moduleSpecification.timeBudgetMillis);
+            moduleExecutors.add(moduleExecutor);
+        }
+        return moduleExecutors;
+    }
+
+    /**
+     * Check that a list of module specifications is well-formed, and load
+     * everything the modules need which does not depend on the certificate.
+     *
+     * @param args the module specifications.
+     * @param dataFileCache the cache where the data files of the modules are opened.
+     * @throws ModuleCreationException if a module could not be created.
+     */
+    public static void prepare(final List<String> args, final DataFileCache dataFileCache) {
+        for (final String arg : args) {
+            ModuleSpecification.parse(arg).createBuilder(dataFileCache).prepare();
+        }
+    }
+
+    private static class ModuleSpecification {
+        private final String moduleName;
+        private final boolean okIsFailure;
+        private final long timeBudgetMillis;
+        private final String[] parts;
+
+        private ModuleSpecification(final String moduleName, final boolean okIsFailure, final long timeBudgetMillis,
+                final String[] parts) {
+            this.moduleName = moduleName;
+            this.okIsFailure = okIsFailure;
+            this.timeBudgetMillis = timeBudgetMillis;
+            this.parts = parts;
+        }
+
+        private static ModuleSpecification parse(final String arg) {
             final String[] moduleAndParts = arg.split("=");
             if (moduleAndParts.length != 2) {
                 throw new ModuleCreationException(
@@ -58,20 +109,42 @@ public class ValidatorModuleFactory {
                         String.format("Malformed module specification '%s'. No data to validate.", arg));
             }
             final boolean okIsFailure = module.startsWith("-");
-            final String moduleName = module.substring(1);
+            final String[] moduleNameAndBudget = module.substring(1).split(":", -1);
+            if (moduleNameAndBudget.length > 2) {
+                throw new ModuleCreationException(
+                        String.format("Malformed module specification '%s'. Too many delimiters ':'.", arg));
+            }
+            final String moduleName = moduleNameAndBudget[0];
+            final long timeBudgetMillis = moduleNameAndBudget.length == 2
+                    ? parseTimeBudget(arg, moduleNameAndBudget[1])
+                    : 0;
+            return new ModuleSpecification(moduleName, okIsFailure, timeBudgetMillis, parts);
+        }
+
+        private static long parseTimeBudget(final String arg, final String timeBudget) {
+            try {
+                final long timeBudgetMillis = Long.parseLong(timeBudget);
+                if (timeBudgetMillis <= 0) {
+                    throw new NumberFormatException();
+                }
+                return timeBudgetMillis;
+            } catch (final NumberFormatException e) {
+                throw new ModuleCreationException(String.format("Malformed module specification '%s'. "
+                        + "The time budget must be a positive number of milliseconds.", arg));
+            }
+        }
+
+        private ModuleExecutorBuilder createBuilder(final DataFileCache dataFileCache) {
             final Optional<ModuleExecutorBuilder> moduleExecutorBuilder = ValidatorModule.create(moduleName);
             if (!moduleExecutorBuilder.isPresent()) {
                 throw new ModuleCreationException(
                         String.format("No module with name '%s' could be found.", moduleName));
             }
-            final ModuleExecutor moduleExecutor = moduleExecutorBuilder.get()
+            return moduleExecutorBuilder.get()
                 .setModuleName(moduleName)
                 .okIsFailure(okIsFailure)
-                .setDataToValidate(extractPartsFromCertificate(parts))
-                .build();
-            moduleExecutors.add(moduleExecutor);
+                .setDataFileCache(dataFileCache);
         }
-        return moduleExecutors;
     }
 
     private List<CertificateData> extractPartsFromCertificate(final String[] parts) {
@@ -0,0 +1,308 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.reload;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.ejbca.validator.ExternalCertificateValidator;
+import org.ejbca.validator.audit.AuditLog;
+import org.ejbca.validator.audit.AuditRecord;
+import org.ejbca.validator.audit.ModuleVerdict;
+import org.ejbca.validator.exception.ModuleCreationException;
+import org.ejbca.validator.module.Deadline;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Keeps the current {@link ValidationSnapshot} of a long-running validator up to
+ * date, without blocking validations. A background thread watches the plan file
+ * and the data files opened by its modules. When any of them changes, a new
+ * snapshot is built off the request path, with all data files opened, and is
+ * then swapped in atomically. Validations which already acquired the old
+ * snapshot finish with it, and its data files are closed when the last of them
+ * releases it. If the new snapshot cannot be built, the error is logged and the
+ * old snapshot stays in use.
+ * <p>
+ * A reload is postponed until the watched files have not changed for half a
+ * second, so that files replaced one after the other only trigger one reload,
+ * but never by more than five seconds. Changes to other files in the same
+ * directories, such as log files, are ignored. Files are compared by their
+ * absolute and normalized paths, with symbolic links in the directories
+ * resolved.
+ * <p>
+ * Data files must be replaced atomically, e.g. by renaming a new file over the
+ * old one, as done by the offline tools.
+ * <p>
+ * Usage:
+ * <pre>
+ * try (final ValidationSnapshot.Handle snapshot = reloader.acquire()) {
+ *     final List&lt;ModuleExecutor&gt; moduleExecutors = snapshot.createModuleExecutors(extractor);
+ *     ...
+ * }
+ * </pre>
+ * or, to also record each decision in an {@link AuditLog} kept open for the
+ * lifetime of the process, so the records of concurrent validations are
+ * written in batches with a single fsync per batch:
+ * <pre>
+ * final int status = reloader.validate(certificate, deadline);
+ * </pre>
+ */
+public class SnapshotReloader implements Closeable {
+    private static final Logger log = LogManager.getLogger(SnapshotReloader.class);
+    private static final long DEBOUNCE_MILLIS = 500;
+    private static final long MAX_DEBOUNCE_MILLIS = 5000;
+    private final Path planFile;
+    private final AtomicReference<ValidationSnapshot> current = new AtomicReference<>();
+    private final WatchService watchService;
+    private final Set<Path> watchedDirectories = new HashSet<>();
+    /** The files triggering a reload, as reported by the watch service */
+    private volatile Set<Path> watchedFiles = ImmutableSet.of();
+    private final Thread watcher;
+    private final AuditLog auditLog;
+
+    /**
+     * Load the plan and start watching for changes.
+     *
+     * @param planFile the plan file, see {@link ValidationSnapshot#load(Path)}.
+     * @throws IOException if the plan file could not be read.
+     * @throws ModuleCreationException if a module in the plan could not be created.
+     */
+    public SnapshotReloader(final Path planFile) throws IOException {
+        this(planFile, null);
+    }
+
+    /**
+     * Load the plan and start watching for changes.
+     *
+     * @param planFile the plan file, see {@link ValidationSnapshot#load(Path)}.
+     * @param auditLog the audit log receiving the decisions made by
+     *        {@link #validate(X509Certificate, Deadline)}, or null. The audit log
+     *        is not closed by the reloader.
+     * @throws IOException if the plan file could not be read.
+     * @throws ModuleCreationException if a module in the plan could not be created.
+     */
+    public SnapshotReloader(final Path planFile, final AuditLog auditLog) throws IOException {
+        this.auditLog = auditLog;
+        this.planFile = planFile.toAbsolutePath().normalize();
+        current.set(ValidationSnapshot.load(this.planFile));
+        watchService = FileSystems.getDefault().newWatchService();
+        watchDirectories(current.get());
+        watcher = new Thread(this::watch, "snapshot-reloader");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Acquire the current snapshot. The handle must be closed when the
+     * validation is done. This never blocks, even while a reload is in progress.
+     */
+    public ValidationSnapshot.Handle acquire() {
+        for (;;) {
+            final ValidationSnapshot snapshot = current.get();
+            if (snapshot == null) {
+                throw new IllegalStateException("The snapshot reloader has been closed.");
+            }
+            // The snapshot may have been swapped out and released in between
+            final ValidationSnapshot.Handle handle = snapshot.tryAcquire();
+            if (handle != null) {
+                return handle;
+            }
+        }
+    }
+
+    /**
+     * Validate a certificate using the current snapshot, and append the decision
+     * to the audit log, if any.
+     *
+     * @param certificate the certificate to validate.
+     * @param deadline the deadline of the validation.
+     * @return the exit status, see {@link ExternalCertificateValidator#validate}.
+     * @throws IOException if the decision could not be appended to the audit log.
+     */
+    public int validate(final X509Certificate certificate, final Deadline deadline) throws IOException {
+        final List<ModuleVerdict> moduleVerdicts = new ArrayList<>();
+        try (final ValidationSnapshot.Handle snapshot = acquire()) {
+            final int status = ExternalCertificateValidator.validate(certificate, snapshot::createModuleExecutors,
+                    deadline, moduleVerdicts);
+            if (auditLog != null) {
+                auditLog.append(AuditRecord.of(certificate, snapshot.getPlan(), status, moduleVerdicts));
+            }
+            return status;
+        }
+    }
+
+    /**
+     * Build a new snapshot and swap it in, e.g. when triggered by an operator
+     * instead of a file change.
+     *
+     * @return true if the snapshot was replaced, false if the old snapshot is
+     *         still in use.
+     */
+    public synchronized boolean reload() {
+        final ValidationSnapshot snapshot;
+        try {
+            snapshot = ValidationSnapshot.load(planFile);
+        } catch (final IOException | RuntimeException e) {
+            log.error("Could not reload the validation plan {}, the previous plan is still in use. {}", planFile,
+                    e.getMessage());
+            return false;
+        }
+        final ValidationSnapshot oldSnapshot = current.getAndSet(snapshot);
+        if (oldSnapshot == null) {
+            // Closed while loading
+            current.set(null);
+            snapshot.release();
+            return false;
+        }
+        oldSnapshot.release();
+        watchDirectories(snapshot);
+        log.info("Reloaded the validation plan {}.", planFile);
+        return true;
+    }
+
+    private void watchDirectories(final ValidationSnapshot snapshot) {
+        final Set<Path> files = new HashSet<>();
+        files.add(planFile);
+        files.addAll(snapshot.getDataFileCache().getWatchedPaths());
+        final Set<Path> newWatchedFiles = new HashSet<>();
+        for (final Path file : files) {
+            final Path directory = realDirectory(file);
+            if (directory == null) {
+                continue;
+            }
+            newWatchedFiles.add(directory.resolve(file.getFileName()));
+            if (watchedDirectories.contains(directory)) {
+                continue;
+            }
+            try {
+                directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                watchedDirectories.add(directory);
+            } catch (final IOException e) {
+                log.warn("Could not watch the directory {} for changes. {}", directory, e.getMessage());
+            }
+        }
+        watchedFiles = ImmutableSet.copyOf(newWatchedFiles);
+    }
+
+    /**
+     * Get the directory of a file with symbolic links resolved, so that the file
+     * is matched with the changes reported by the watch service however its path
+     * was given.
+     *
+     * @return the directory, or null if the file has no parent.
+     */
+    private static Path realDirectory(final Path file) {
+        final Path directory = file.getParent();
+        if (directory == null) {
+            return null;
+        }
+        try {
+            return directory.toRealPath();
+        } catch (final IOException e) {
+            return directory;
+        }
+    }
+
+    /**
+     * Check if a changed file is the plan file or one of the files of the data
+     * files in use. Files written by the validator itself, such as the key reuse
+     * index, are never watched.
+     */
+    private boolean isWatched(final Path changedFile) {
+        return watchedFiles.contains(changedFile);
+    }
+
+    private void watch() {
+        try {
+            for (;;) {
+                if (!pollChanges(watchService.take())) {
+                    continue;
+                }
+                // Wait until the watched files have been quiet for a while, so that
+                // files replaced in several steps only trigger a single reload.
+                // Only changes to watched files postpone the reload, and only up to
+                // a limit, so a busy directory cannot postpone it forever.
+                final long start = System.nanoTime();
+                long quietAt = start + TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MILLIS);
+                for (;;) {
+                    final long now = System.nanoTime();
+                    final long waitNanos = Math.min(quietAt - now,
+                            start + TimeUnit.MILLISECONDS.toNanos(MAX_DEBOUNCE_MILLIS) - now);
+                    if (waitNanos <= 0) {
+                        break;
+                    }
+                    final WatchKey key = watchService.poll(waitNanos, TimeUnit.NANOSECONDS);
+                    if (key != null && pollChanges(key)) {
+                        quietAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MILLIS);
+                    }
+                }
+                reload();
+            }
+        } catch (final InterruptedException | ClosedWatchServiceException e) {
+            // The reloader has been closed
+        }
+    }
+
+    private boolean pollChanges(final WatchKey key) {
+        boolean changed = false;
+        final Path directory = (Path) key.watchable();
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed = true;
+            } else if (isWatched(directory.resolve((Path) event.context()))) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.interrupt();
+        watchService.close();
+        synchronized (this) {
+            final ValidationSnapshot snapshot = current.getAndSet(null);
+            if (snapshot != null) {
+                snapshot.release();
+            }
+        }
+    }
+}
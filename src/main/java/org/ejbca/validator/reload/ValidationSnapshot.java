@@ -0,0 +1,163 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.reload;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.ejbca.validator.exception.ModuleCreationException;
+import org.ejbca.validator.extraction.X509CertificateDataExtractor;
+import org.ejbca.validator.module.DataFileCache;
+import org.ejbca.validator.module.ModuleExecutor;
+import org.ejbca.validator.module.ValidatorModuleFactory;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * An immutable validation plan together with the data files used by its
+ * modules. A snapshot is reference counted: it is created with one reference,
+ * held by the {@link SnapshotReloader} while the snapshot is current, and each
+ * validation retains one more reference, through a {@link Handle}, while it
+ * runs. The data files are closed when the last reference is released, i.e.
+ * when the snapshot has been replaced and all validations using it have
+ * finished.
+ */
+public class ValidationSnapshot {
+    private final List<String> plan;
+    private final DataFileCache dataFileCache;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private ValidationSnapshot(final List<String> plan, final DataFileCache dataFileCache) {
+        this.plan = plan;
+        this.dataFileCache = dataFileCache;
+    }
+
+    /**
+     * Read a plan file and prepare its modules. The plan file contains one module
+     * specification per line, in the same format as on the command line. Empty
+     * lines and lines starting with '#' are ignored.
+     *
+     * @param planFile the plan file.
+     * @return a new snapshot with all data files opened.
+     * @throws IOException if the plan file could not be read.
+     * @throws ModuleCreationException if a module could not be created.
+     */
+    static ValidationSnapshot load(final Path planFile) throws IOException {
+        final List<String> plan = ImmutableList.copyOf(Files.readAllLines(planFile, StandardCharsets.UTF_8)
+                .stream()
+                .map(String::trim)
+                .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                .collect(Collectors.toList()));
+        if (plan.isEmpty()) {
+            throw new ModuleCreationException(String.format("The plan file %s contains no modules.", planFile));
+        }
+        final DataFileCache dataFileCache = new DataFileCache();
+        try {
+            ValidatorModuleFactory.prepare(plan, dataFileCache);
+        } catch (final RuntimeException e) {
+            dataFileCache.close();
+            throw e;
+        }
+        return new ValidationSnapshot(plan, dataFileCache);
+    }
+
+    DataFileCache getDataFileCache() {
+        return dataFileCache;
+    }
+
+    /**
+     * Retain a reference to the snapshot, unless all references have already
+     * been released.
+     *
+     * @return a handle releasing the reference when closed, or null if the
+     *         snapshot is closed.
+     */
+    Handle tryAcquire() {
+        for (;;) {
+            final int count = references.get();
+            if (count == 0) {
+                return null;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return new Handle();
+            }
+        }
+    }
+
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            dataFileCache.close();
+        }
+    }
+
+    /**
+     * A reference to a snapshot, retained by {@link SnapshotReloader#acquire()}.
+     * Closing the handle releases the reference. A handle only releases its
+     * reference once, however many times it is closed, so closing a handle twice
+     * never releases a reference held by another validation.
+     */
+    public class Handle implements AutoCloseable {
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Handle() {
+        }
+
+        /**
+         * Create the modules of the plan for a certificate. The handle must be
+         * kept open until the modules have been executed.
+         *
+         * @throws IllegalStateException if the handle has been closed.
+         */
+        public List<ModuleExecutor> createModuleExecutors(
+                final X509CertificateDataExtractor certificateDataExtractor) {
+            if (released.get()) {
+                throw new IllegalStateException("The validation snapshot has been released.");
+            }
+            return new ValidatorModuleFactory(certificateDataExtractor, dataFileCache).fromCommandLine(plan);
+        }
+
+        public List<String> getPlan() {
+            return plan;
+        }
+
+        ValidationSnapshot getSnapshot() {
+            return ValidationSnapshot.this;
+        }
+
+        /**
+         * Release the reference retained by {@link SnapshotReloader#acquire()},
+         * unless it has already been released.
+         */
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                release();
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.ejbca.validator.audit.ModuleVerdict;
+import org.ejbca.validator.audit.ModuleVerdict.Verdict;
+import org.ejbca.validator.extraction.data.CertificateData;
+import org.ejbca.validator.module.Deadline;
+import org.ejbca.validator.module.ModuleExecutor;
+import org.ejbca.validator.module.ValidatorModule;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExternalCertificateValidatorTest {
+    private X509Certificate certificate;
+    private final List<ModuleVerdict> moduleVerdicts = new ArrayList<>();
+
+    @Before
+    public void loadCertificate() throws Exception {
+        certificate = TestCertificates.example();
+    }
+
+    private static CertificateData part(final String... dataItems) {
+        final List<String> items = Arrays.asList(dataItems);
+        return new CertificateData() {
+            @Override
+            public String getPartName() {
+                return "DNS";
+            }
+
+            @Override
+            public List<String> getDataItems() {
+                return items;
+            }
+        };
+    }
+
+    /**
+     * A module which spends the given time on each data item, and accepts the data
+     * items starting with "ok".
+     */
+    private static ModuleExecutor module(final String moduleName, final long millisPerItem,
+            final String... dataItems) {
+        final ValidatorModule module = new ValidatorModule() {
+            @Override
+            public Map<String, Boolean> validate(final CertificateData part, final Deadline deadline) {
+                return ValidatorModule.validateEach(part, deadline, dataItem -> {
+                    try {
+                        Thread.sleep(millisPerItem);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return dataItem.startsWith("ok");
+                });
+            }
+
+            @Override
+            public String getModuleName() {
+                return moduleName;
+            }
+        };
+        return new ModuleExecutor(module, Collections.singletonList(part(dataItems)), false);
+    }
+
+    private int validate(final Deadline deadline, final ModuleExecutor... moduleExecutors) {
+        return ExternalCertificateValidator.validate(certificate, extractor -> Arrays.asList(moduleExecutors),
+                deadline, moduleVerdicts);
+    }
+
+    private void assertVerdicts(final Verdict... verdicts) {
+        assertEquals(verdicts.length, moduleVerdicts.size());
+        for (int i = 0; i < verdicts.length; i++) {
+            assertEquals(verdicts[i], moduleVerdicts.get(i).getVerdict());
+        }
+    }
+
+    @Test
+    public void passingModulesExitWithZero() {
+        assertEquals(0, validate(Deadline.none(), module("first", 0, "ok1", "ok2"), module("second", 0, "ok")));
+        assertVerdicts(Verdict.PASS, Verdict.PASS);
+        assertEquals("+first", moduleVerdicts.get(0).getModuleName());
+    }
+
+    @Test
+    public void failingModuleExitsWith100AndStopsTheValidation() {
+        assertEquals(100, validate(Deadline.none(), module("first", 0, "ok", "bad"), module("second", 0, "ok")));
+        assertVerdicts(Verdict.FAIL);
+    }
+
+    @Test
+    public void exceededDeadlineExitsWith5() {
+        assertEquals(5, validate(Deadline.after(50), module("first", 0, "ok"),
+                module("slow", 20, "ok1", "ok2", "ok3", "ok4", "ok5", "ok6", "ok7", "ok8", "ok9", "ok10"),
+                module("third", 0, "ok")));
+        assertVerdicts(Verdict.PASS, Verdict.DEADLINE_EXCEEDED);
+        assertEquals("+slow", moduleVerdicts.get(1).getModuleName());
+    }
+
+    @Test
+    public void exceededModuleBudgetExitsWith5() {
+        assertEquals(5, validate(Deadline.after(60000),
+                module("slow", 20, "ok1", "ok2", "ok3", "ok4", "ok5", "ok6", "ok7", "ok8", "ok9", "ok10")
+                        .withTimeBudget(50)));
+        assertVerdicts(Verdict.DEADLINE_EXCEEDED);
+    }
+
+    @Test
+    public void moduleWithinItsBudgetPasses() {
+        assertEquals(0, validate(Deadline.after(60000), module("fast", 0, "ok1", "ok2").withTimeBudget(60000)));
+        assertVerdicts(Verdict.PASS);
+    }
+}
@@ -0,0 +1,263 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.audit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ejbca.validator.TestCertificates;
+import org.ejbca.validator.audit.ModuleVerdict.Verdict;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AuditLogTest {
+    private static final List<String> PLAN = Arrays.asList("+isHostname=DNS");
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private Path path;
+    private X509Certificate certificate;
+
+    @Before
+    public void loadCertificate() throws Exception {
+        path = folder.getRoot().toPath().resolve("audit.log");
+        certificate = TestCertificates.example();
+    }
+
+    private AuditRecord record(final int status) {
+        return AuditRecord.of(certificate, PLAN, status,
+                Arrays.asList(new ModuleVerdict("isHostname", status == 0 ? Verdict.PASS : Verdict.FAIL, 1000)));
+    }
+
+    private List<String> lines() throws IOException {
+        return Files.readAllLines(path, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Verify the hash chain of the records.
+     *
+     * @return the line number of the first broken record, or 0 if the chain is intact.
+     */
+    private static int firstBrokenLine(final List<String> lines) {
+        final AuditLogVerifier verifier = new AuditLogVerifier();
+        for (int i = 0; i < lines.size(); i++) {
+            if (verifier.verify(lines.get(i)) != null) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private void writeRecords(final int count) throws IOException {
+        try (final AuditLog auditLog = AuditLog.open(path)) {
+            for (int i = 0; i < count; i++) {
+                auditLog.append(record(i % 2 == 0 ? 0 : 100));
+            }
+        }
+    }
+
+    @Test
+    public void recordsOfConcurrentValidationsFormAHashChain() throws Exception {
+        final List<Thread> threads = new ArrayList<>();
+        try (final AuditLog auditLog = AuditLog.open(path)) {
+            for (int i = 0; i < 4; i++) {
+                // More records than fit in the ring buffer
+                final Thread thread = new Thread(() -> {
+                    try {
+                        for (int j = 0; j < 1000; j++) {
+                            auditLog.append(record(0));
+                        }
+                    } catch (final IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+        }
+        final List<String> lines = lines();
+        assertEquals(4000, lines.size());
+        assertEquals(0, firstBrokenLine(lines));
+        assertTrue(lines.get(0).contains(",\"prev\":\"" + AuditLog.GENESIS_HASH + "\""));
+    }
+
+    @Test
+    public void reopenedLogIsChainedToTheLastRecord() throws Exception {
+        writeRecords(3);
+        writeRecords(2);
+        final List<String> lines = lines();
+        assertEquals(5, lines.size());
+        assertEquals(0, firstBrokenLine(lines));
+    }
+
+    @Test
+    public void recordContainsTheDecision() throws Exception {
+        try (final AuditLog auditLog = AuditLog.open(path)) {
+            auditLog.append(record(100));
+            // The certificate could not be loaded
+            auditLog.append(AuditRecord.of(null, PLAN, 7, Collections.emptyList()));
+        }
+        final List<String> lines = lines();
+        assertEquals(0, firstBrokenLine(lines));
+        assertTrue(lines.get(0).contains("\"serial\":\"1234\""));
+        assertTrue(lines.get(0).contains("\"plan\":\"" + AuditRecord.planHash(PLAN) + "\""));
+        assertTrue(lines.get(0).contains("\"status\":100,"));
+        assertTrue(lines.get(0).contains(
+                "\"modules\":[{\"module\":\"isHostname\",\"verdict\":\"fail\",\"micros\":1}]"));
+        assertTrue(lines.get(1).contains("\"serial\":null,\"fingerprint\":null,"));
+        assertTrue(lines.get(1).contains("\"status\":7,\"modules\":[],"));
+    }
+
+    @Test
+    public void modifiedRecordIsDetected() throws Exception {
+        writeRecords(3);
+        final List<String> lines = lines();
+        lines.set(1, lines.get(1).replace("\"status\":100,", "\"status\":0,"));
+        assertEquals(2, firstBrokenLine(lines));
+        assertNull(new AuditLogVerifier().verify(lines.get(0)));
+    }
+
+    @Test
+    public void removedRecordIsDetected() throws Exception {
+        writeRecords(3);
+        final List<String> lines = lines();
+        lines.remove(1);
+        assertEquals(2, firstBrokenLine(lines));
+        final List<String> withoutFirst = lines();
+        withoutFirst.remove(0);
+        assertEquals(1, firstBrokenLine(withoutFirst));
+    }
+
+    @Test
+    public void insertedRecordIsDetected() throws Exception {
+        writeRecords(2);
+        final List<String> lines = lines();
+        lines.add(1, lines.get(0));
+        assertEquals(2, firstBrokenLine(lines));
+        lines.set(1, lines.get(1).substring(0, lines.get(1).indexOf(AuditRecord.HASH_FIELD)));
+        assertEquals(2, firstBrokenLine(lines));
+    }
+
+    @Test
+    public void incompleteRecordIsRemoved() throws Exception {
+        writeRecords(1);
+        final String incomplete = "{\"time\":\"2018-01-01T00:00:00Z\",\"serial\":";
+        Files.write(path, incomplete.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        writeRecords(1);
+        final List<String> lines = lines();
+        assertEquals(2, lines.size());
+        assertEquals(0, firstBrokenLine(lines));
+    }
+
+    @Test
+    public void failedWriteIsReported() throws Exception {
+        Files.write(path, Collections.singletonList("Not a record"), StandardCharsets.UTF_8);
+        final AuditLog auditLog = AuditLog.open(path);
+        try {
+            final long start = System.nanoTime();
+            for (;;) {
+                auditLog.append(record(0));
+                if (System.nanoTime() - start > TimeUnit.SECONDS.toNanos(5)) {
+                    fail("The failure of the writer was not reported.");
+                }
+                Thread.sleep(10);
+            }
+        } catch (final IOException e) {
+            // Expected
+        }
+        try {
+            auditLog.close();
+            fail("The failure of the writer was not reported when the log was closed.");
+        } catch (final IOException e) {
+            // Expected
+        }
+        assertEquals(Collections.singletonList("Not a record"), lines());
+    }
+
+    @Test
+    public void appendAfterCloseIsRejected() throws Exception {
+        final AuditLog auditLog = AuditLog.open(path);
+        auditLog.close();
+        try {
+            auditLog.append(record(0));
+            fail("A record was appended to a closed log.");
+        } catch (final IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void appendRacingWithCloseIsEitherWrittenOrRejected() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            Files.deleteIfExists(path);
+            final AuditLog auditLog = AuditLog.open(path);
+            final AtomicInteger appended = new AtomicInteger();
+            final CountDownLatch started = new CountDownLatch(4);
+            final List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final Thread thread = new Thread(() -> {
+                    started.countDown();
+                    try {
+                        for (;;) {
+                            auditLog.append(record(0));
+                            appended.incrementAndGet();
+                        }
+                    } catch (final IllegalStateException e) {
+                        // The log has been closed
+                    } catch (final IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            started.await();
+            auditLog.close();
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+            final List<String> lines = lines();
+            assertEquals(appended.get(), lines.size());
+            assertEquals(0, firstBrokenLine(lines));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.confusables;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.text.Normalizer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConfusablesTableTest {
+    private ConfusablesTable confusablesTable;
+    private ProtectedSkeletons protectedSkeletons;
+
+    @Before
+    public void load() throws Exception {
+        confusablesTable = ConfusablesTable.load();
+        protectedSkeletons = ProtectedSkeletons.load();
+    }
+
+    private static String nfd(final String label) {
+        return Normalizer.normalize(label, Normalizer.Form.NFD);
+    }
+
+    private boolean isConfusable(final String label) {
+        return protectedSkeletons.isConfusable(ConfusablesTable.literalHash(nfd(label)),
+                confusablesTable.skeletonHash(nfd(label)));
+    }
+
+    @Test
+    public void confusableLabelsHaveTheSameSkeleton() {
+        assertEquals(confusablesTable.skeletonHash("google"), confusablesTable.skeletonHash("g00gle"));
+        assertEquals(confusablesTable.skeletonHash("microsoft"), confusablesTable.skeletonHash("rnicrosoft"));
+        assertEquals(confusablesTable.skeletonHash("paypal"), confusablesTable.skeletonHash("paypa1"));
+        // "apple" spelled with Cyrillic letters
+        assertEquals(confusablesTable.skeletonHash("apple"),
+                confusablesTable.skeletonHash(nfd("\u0430\u0440\u0440\u04cf\u0435")));
+        assertNotEquals(confusablesTable.skeletonHash("google"), confusablesTable.skeletonHash("goggle"));
+    }
+
+    @Test
+    public void skeletonOfStringWithoutConfusablesIsTheLiteral() {
+        assertEquals(ConfusablesTable.literalHash("test"), confusablesTable.skeletonHash("test"));
+        assertNotEquals(ConfusablesTable.literalHash("g00gle"), confusablesTable.skeletonHash("g00gle"));
+    }
+
+    @Test
+    public void labelsConfusableWithAProtectedBrandAreDetected() {
+        assertTrue(isConfusable("g00gle"));
+        assertTrue(isConfusable("rnicrosoft"));
+        assertTrue(isConfusable("\u0430\u0440\u0440\u04cf\u0435"));
+        // With a Cyrillic 'a'
+        assertTrue(isConfusable("\u0430mazon"));
+    }
+
+    @Test
+    public void protectedBrandsAndUnrelatedLabelsAreNotConfusable() {
+        assertFalse(isConfusable("google"));
+        assertFalse(isConfusable("paypal"));
+        assertFalse(isConfusable("example"));
+        assertFalse(isConfusable("goggle"));
+    }
+}
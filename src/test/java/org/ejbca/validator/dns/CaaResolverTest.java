@@ -0,0 +1,214 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.dns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class CaaResolverTest {
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long SHORT_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(300);
+    private StubDnsServer server;
+
+    private CaaResolver start(final StubDnsServer.Responder responder) throws IOException {
+        server = new StubDnsServer(responder);
+        return new CaaResolver(server.getAddress());
+    }
+
+    @After
+    public void stop() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private static CaaRecordSet lookup(final CaaResolver resolver, final String domain, final long timeoutNanos) {
+        return resolver.lookup(Collections.singletonList(domain), timeoutNanos).get(domain);
+    }
+
+    @Test
+    public void positiveAnswerIsCachedForItsTtl() throws Exception {
+        final CaaResolver resolver = start((id, name, overTcp) -> StubDnsServer.response(id, name, 0,
+                Arrays.asList(StubDnsServer.caa(name, 300, "issue", "ca.test")), Collections.emptyList()));
+        for (int i = 0; i < 2; i++) {
+            final CaaRecordSet recordSet = lookup(resolver, "example.test", TIMEOUT_NANOS);
+            assertEquals(1, recordSet.getRecords().size());
+            assertEquals("issue", recordSet.getRecords().get(0).getTag());
+            assertEquals("ca.test", recordSet.getRecords().get(0).getValue());
+        }
+        assertEquals(1, server.getUdpQueries("example.test"));
+    }
+
+    @Test
+    public void answerWithZeroTtlIsNotCached() throws Exception {
+        final CaaResolver resolver = start((id, name, overTcp) -> StubDnsServer.response(id, name, 0,
+                Arrays.asList(StubDnsServer.caa(name, 0, "issue", "ca.test")), Collections.emptyList()));
+        lookup(resolver, "example.test", TIMEOUT_NANOS);
+        lookup(resolver, "example.test", TIMEOUT_NANOS);
+        assertEquals(2, server.getUdpQueries("example.test"));
+    }
+
+    @Test
+    public void negativeAnswerIsCachedUsingTheSoaMinimum() throws Exception {
+        final CaaResolver resolver = start((id, name, overTcp) -> StubDnsServer.response(id, name, 0,
+                Collections.emptyList(), Arrays.asList(StubDnsServer.soa("test", 3600, 60))));
+        for (int i = 0; i < 2; i++) {
+            assertTrue(lookup(resolver, "example.test", TIMEOUT_NANOS).isEmpty());
+        }
+        assertEquals(1, server.getUdpQueries("example.test"));
+    }
+
+    @Test
+    public void negativeAnswerWithoutSoaIsNotCached() throws Exception {
+        final CaaResolver resolver = start((id, name, overTcp) -> StubDnsServer.response(id, name, 0,
+                Collections.emptyList(), Collections.emptyList()));
+        assertTrue(lookup(resolver, "example.test", TIMEOUT_NANOS).isEmpty());
+        assertTrue(lookup(resolver, "example.test", TIMEOUT_NANOS).isEmpty());
+        assertEquals(2, server.getUdpQueries("example.test"));
+    }
+
+    @Test
+    public void nxdomainIsAnEmptyRecordSet() throws Exception {
+        final CaaResolver resolver = start((id, name, overTcp) -> StubDnsServer.response(id, name,
+                DnsMessage.RCODE_NXDOMAIN, Collections.emptyList(),
+                Arrays.asList(StubDnsServer.soa("test", 3600, 60))));
+        assertTrue(lookup(resolver, "missing.test", TIMEOUT_NANOS).isEmpty());
+        assertTrue(lookup(resolver, "missing.test", TIMEOUT_NANOS).isEmpty());
+        assertEquals(1, server.getUdpQueries("missing.test"));
+    }
+
+    @Test
+    public void serverFailureIsAFailureAndNotCached() throws Exception {
+        final CaaResolver resolver = start((id, name, overTcp) -> StubDnsServer.response(id, name, 2,
+                Collections.emptyList(), Collections.emptyList()));
+        assertTrue(lookup(resolver, "example.test", TIMEOUT_NANOS).isFailure());
+        assertTrue(lookup(resolver, "example.test", TIMEOUT_NANOS).isFailure());
+        assertEquals(2, server.getUdpQueries("example.test"));
+    }
+
+    @Test
+    public void truncatedAnswerIsRetriedOverTcp() throws Exception {
+        final CaaResolver resolver = start((id, name, overTcp) -> overTcp
+                ? StubDnsServer.response(id, name, 0,
+                        Arrays.asList(StubDnsServer.caa(name, 300, "issue", "ca.test")), Collections.emptyList())
+                : StubDnsServer.response(id, name, 0x0200, Collections.emptyList(), Collections.emptyList()));
+        final CaaRecordSet recordSet = lookup(resolver, "example.test", TIMEOUT_NANOS);
+        assertEquals(1, recordSet.getRecords().size());
+        assertEquals(1, server.getUdpQueries("example.test"));
+        assertEquals(1, server.getTcpQueries("example.test"));
+    }
+
+    @Test
+    public void answerWithMismatchedIdIsIgnored() throws Exception {
+        final CaaResolver resolver = start((id, name, overTcp) -> StubDnsServer.response((id + 1) & 0xffff, name,
+                0, Arrays.asList(StubDnsServer.caa(name, 300, "issue", "ca.test")), Collections.emptyList()));
+        assertTrue(lookup(resolver, "example.test", SHORT_TIMEOUT_NANOS).isFailure());
+    }
+
+    @Test
+    public void answerWithMismatchedQuestionIsIgnored() throws Exception {
+        final CaaResolver resolver = start((id, name, overTcp) -> StubDnsServer.response(id, "other.test", 0,
+                Arrays.asList(StubDnsServer.caa("other.test", 300, "issue", "ca.test")), Collections.emptyList()));
+        assertTrue(lookup(resolver, "example.test", SHORT_TIMEOUT_NANOS).isFailure());
+    }
+
+    @Test
+    public void answerWithMalformedRdataIsIgnored() throws Exception {
+        final CaaResolver resolver = start((id, name, overTcp) -> StubDnsServer.response(id, name, 0,
+                Arrays.asList(StubDnsServer.record(name, DnsMessage.TYPE_CAA, 300, new byte[] { 0, 10, 'i' }),
+                        StubDnsServer.caa(name, 300, "issue", "ca.test")),
+                Collections.emptyList()));
+        assertTrue(lookup(resolver, "example.test", SHORT_TIMEOUT_NANOS).isFailure());
+    }
+
+    @Test
+    public void eachDomainIsQueriedOnce() throws Exception {
+        final CaaResolver resolver = start((id, name, overTcp) -> StubDnsServer.response(id, name, 0,
+                Collections.emptyList(), Collections.emptyList()));
+        final Map<String, CaaRecordSet> recordSets = resolver.lookup(
+                Arrays.asList("a.example.test", "example.test", "b.example.test", "example.test"), TIMEOUT_NANOS);
+        assertEquals(3, recordSets.size());
+        assertEquals(1, server.getUdpQueries("example.test"));
+    }
+
+    @Test
+    public void tagLongerThanRdataIsRejected() throws Exception {
+        assertMalformed(Arrays.asList(
+                StubDnsServer.record("example.test", DnsMessage.TYPE_CAA, 300, new byte[] { 0, 10, 'i' })),
+                Collections.emptyList());
+    }
+
+    @Test
+    public void caaRecordWithoutTagLengthIsRejected() throws Exception {
+        assertMalformed(Arrays.asList(
+                StubDnsServer.record("example.test", DnsMessage.TYPE_CAA, 300, new byte[] { 0 })),
+                Collections.emptyList());
+    }
+
+    @Test
+    public void rdataLengthPastTheEndIsRejected() throws Exception {
+        final byte[] rdata = { 0, 5, 'i', 's', 's', 'u', 'e' };
+        final byte[] record = StubDnsServer.record("example.test", DnsMessage.TYPE_CAA, 300, rdata);
+        // Increase RDLENGTH, located just before the RDATA, beyond the end of the message
+        record[record.length - rdata.length - 2] = 0x7f;
+        assertMalformed(Arrays.asList(record), Collections.emptyList());
+    }
+
+    @Test
+    public void soaShorterThanItsFieldsIsRejected() throws Exception {
+        // MNAME and RNAME are the root, followed by 6 of the 20 bytes of the remaining fields
+        final byte[] truncatedSoa = StubDnsServer.record("test", DnsMessage.TYPE_SOA, 3600,
+                new byte[] { 0, 0, 0, 0, 0, 1, 0, 0 });
+        assertMalformed(Collections.emptyList(), Arrays.asList(truncatedSoa));
+    }
+
+    /**
+     * Check that a response is rejected. A valid SOA record is added after the
+     * records, so a field read past the end of its RDATA does not simply run into
+     * the end of the message.
+     */
+    private static void assertMalformed(final List<byte[]> answers, final List<byte[]> authorities)
+            throws IOException {
+        final List<byte[]> paddedAuthorities = new ArrayList<>(authorities);
+        paddedAuthorities.add(StubDnsServer.soa("test", 3600, 60));
+        final byte[] response = StubDnsServer.response(1, "example.test", 0, answers, paddedAuthorities);
+        try {
+            DnsMessage.decode(ByteBuffer.wrap(response));
+            fail("A malformed response was decoded.");
+        } catch (final IOException e) {
+            // Expected
+        }
+    }
+}
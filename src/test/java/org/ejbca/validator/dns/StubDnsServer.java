@@ -0,0 +1,251 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.dns;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A DNS server for tests, listening for UDP and TCP on the same port of the
+ * loopback interface. Each query is answered by a {@link Responder}, and the
+ * number of queries for each name is counted.
+ */
+public class StubDnsServer implements Closeable {
+    private final DatagramChannel udp;
+    private final ServerSocket tcp;
+    private final Responder responder;
+    private final Map<String, AtomicInteger> udpQueries = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> tcpQueries = new ConcurrentHashMap<>();
+    private final List<Thread> threads = new ArrayList<>();
+
+    public interface Responder {
+        /**
+         * @param id the id of the query.
+         * @param name the name in the question of the query.
+         * @param overTcp true if the query was sent over TCP.
+         * @return the response, or null to leave the query unanswered.
+         */
+        byte[] respond(int id, String name, boolean overTcp) throws IOException;
+    }
+
+    public StubDnsServer(final Responder responder) throws IOException {
+        this.responder = responder;
+        this.udp = DatagramChannel.open();
+        udp.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.tcp = new ServerSocket();
+        tcp.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), getAddress().getPort()));
+        start(this::serveUdp);
+        start(this::serveTcp);
+    }
+
+    private interface Server {
+        void serve() throws IOException;
+    }
+
+    private void start(final Server server) {
+        final Thread thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (final IOException e) {
+                // The server has been closed
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        threads.add(thread);
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) udp.getLocalAddress();
+    }
+
+    public int getUdpQueries(final String name) {
+        final AtomicInteger count = udpQueries.get(name);
+        return count == null ? 0 : count.get();
+    }
+
+    public int getTcpQueries(final String name) {
+        final AtomicInteger count = tcpQueries.get(name);
+        return count == null ? 0 : count.get();
+    }
+
+    private void serveUdp() throws IOException {
+        final ByteBuffer query = ByteBuffer.allocate(DnsMessage.MAX_UDP_PAYLOAD);
+        for (;;) {
+            query.clear();
+            final SocketAddress client = udp.receive(query);
+            query.flip();
+            final byte[] response = respond(query, false);
+            if (response != null) {
+                udp.send(ByteBuffer.wrap(response), client);
+            }
+        }
+    }
+
+    private void serveTcp() throws IOException {
+        for (;;) {
+            try (final Socket client = tcp.accept()) {
+                final DataInputStream in = new DataInputStream(client.getInputStream());
+                final byte[] query = new byte[in.readUnsignedShort()];
+                in.readFully(query);
+                final byte[] response = respond(ByteBuffer.wrap(query), true);
+                if (response != null) {
+                    final DataOutputStream out = new DataOutputStream(client.getOutputStream());
+                    out.writeShort(response.length);
+                    out.write(response);
+                    out.flush();
+                }
+            }
+        }
+    }
+
+    private byte[] respond(final ByteBuffer query, final boolean overTcp) throws IOException {
+        final int id = query.getShort(0) & 0xffff;
+        final StringBuilder name = new StringBuilder();
+        query.position(12);
+        for (int length = query.get(); length != 0; length = query.get()) {
+            final byte[] label = new byte[length];
+            query.get(label);
+            name.append(name.length() == 0 ? "" : ".").append(new String(label, StandardCharsets.US_ASCII));
+        }
+        (overTcp ? tcpQueries : udpQueries).computeIfAbsent(name.toString(), key -> new AtomicInteger())
+                .incrementAndGet();
+        return responder.respond(id, name.toString(), overTcp);
+    }
+
+    @Override
+    public void close() throws IOException {
+        udp.close();
+        tcp.close();
+        for (final Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Encode a response to a CAA query.
+     *
+     * @param id the id of the query.
+     * @param name the name in the question.
+     * @param flags the flags of the response, excluding the QR and RD bits, e.g.
+     *        the TC bit and the RCODE.
+     * @param answers the records in the answer section.
+     * @param authorities the records in the authority section.
+     */
+    public static byte[] response(final int id, final String name, final int flags, final List<byte[]> answers,
+            final List<byte[]> authorities) throws IOException {
+        final ByteArrayOutputStream message = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(message);
+        out.writeShort(id);
+        out.writeShort(0x8180 | flags);
+        out.writeShort(1);
+        out.writeShort(answers.size());
+        out.writeShort(authorities.size());
+        out.writeShort(0);
+        out.write(encodeName(name));
+        out.writeShort(DnsMessage.TYPE_CAA);
+        out.writeShort(DnsMessage.CLASS_IN);
+        for (final byte[] record : answers) {
+            out.write(record);
+        }
+        for (final byte[] record : authorities) {
+            out.write(record);
+        }
+        return message.toByteArray();
+    }
+
+    /**
+     * Encode a resource record.
+     */
+    public static byte[] record(final String name, final int type, final long ttl, final byte[] rdata)
+            throws IOException {
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(record);
+        out.write(encodeName(name));
+        out.writeShort(type);
+        out.writeShort(DnsMessage.CLASS_IN);
+        out.writeInt((int) ttl);
+        out.writeShort(rdata.length);
+        out.write(rdata);
+        return record.toByteArray();
+    }
+
+    /**
+     * Encode a CAA record.
+     */
+    public static byte[] caa(final String name, final long ttl, final String tag, final String value)
+            throws IOException {
+        final ByteArrayOutputStream rdata = new ByteArrayOutputStream();
+        rdata.write(0);
+        rdata.write(tag.length());
+        rdata.write(tag.getBytes(StandardCharsets.US_ASCII));
+        rdata.write(value.getBytes(StandardCharsets.UTF_8));
+        return record(name, DnsMessage.TYPE_CAA, ttl, rdata.toByteArray());
+    }
+
+    /**
+     * Encode a SOA record, as found in the authority section of a negative answer.
+     */
+    public static byte[] soa(final String name, final long ttl, final long minimum) throws IOException {
+        final ByteArrayOutputStream rdata = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(rdata);
+        out.write(encodeName("ns." + name));
+        out.write(encodeName("hostmaster." + name));
+        out.writeInt(1);
+        out.writeInt(3600);
+        out.writeInt(600);
+        out.writeInt(86400);
+        out.writeInt((int) minimum);
+        return record(name, DnsMessage.TYPE_SOA, ttl, rdata.toByteArray());
+    }
+
+    private static byte[] encodeName(final String name) {
+        final ByteArrayOutputStream encodedName = new ByteArrayOutputStream();
+        for (final String label : name.split("\\.")) {
+            encodedName.write(label.length());
+            final byte[] encodedLabel = label.getBytes(StandardCharsets.US_ASCII);
+            encodedName.write(encodedLabel, 0, encodedLabel.length);
+        }
+        encodedName.write(0);
+        return encodedName.toByteArray();
+    }
+}
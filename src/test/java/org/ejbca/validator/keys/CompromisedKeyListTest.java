@@ -0,0 +1,244 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.BaseEncoding;
+
+public class CompromisedKeyListTest {
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final Random random = new Random(1);
+
+    private Path path(final String name) {
+        return folder.getRoot().toPath().resolve(name);
+    }
+
+    private void move(final String source, final String target) throws IOException {
+        Files.move(path(source), path(target), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private byte[] randomHash() {
+        final byte[] hash = new byte[SortedHashFile.RECORD_LENGTH];
+        random.nextBytes(hash);
+        return hash;
+    }
+
+    private List<byte[]> randomHashes(final int count) {
+        final List<byte[]> hashes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            hashes.add(randomHash());
+        }
+        return hashes;
+    }
+
+    /**
+     * Write a list using the writer, as done by the offline tool.
+     *
+     * @return the base path of the list.
+     */
+    private String write(final String name, final List<String> lines, final double falsePositiveRate)
+            throws IOException {
+        final Path input = path(name + ".txt");
+        Files.write(input, lines, StandardCharsets.US_ASCII);
+        final String base = path(name).toString();
+        final CompromisedKeyListWriter writer = new CompromisedKeyListWriter();
+        writer.readHashes(input);
+        writer.sortAndRemoveDuplicates();
+        writer.write(base, falsePositiveRate);
+        return base;
+    }
+
+    private String writeHashes(final String name, final List<byte[]> hashes) throws IOException {
+        final List<String> lines = new ArrayList<>();
+        for (final byte[] hash : hashes) {
+            lines.add(HEX.encode(hash));
+        }
+        return write(name, lines, 0.01);
+    }
+
+    @Test
+    public void writtenHashesAreCompromised() throws Exception {
+        final List<byte[]> hashes = randomHashes(1000);
+        try (final CompromisedKeyList list = CompromisedKeyList.open(writeHashes("keys", hashes))) {
+            for (final byte[] hash : hashes) {
+                assertTrue(list.isCompromised(hash));
+            }
+            for (final byte[] hash : randomHashes(1000)) {
+                assertFalse(list.isCompromised(hash));
+            }
+        }
+    }
+
+    @Test
+    public void hashFileContainsEachHashOnceInOrder() throws Exception {
+        final byte[] first = new byte[SortedHashFile.RECORD_LENGTH];
+        final byte[] last = new byte[SortedHashFile.RECORD_LENGTH];
+        Arrays.fill(last, (byte) 0xff);
+        final byte[] middle = randomHash();
+        final List<String> lines = new ArrayList<>();
+        lines.add("# Comment");
+        lines.add("");
+        lines.add(HEX.encode(middle).toUpperCase(Locale.ROOT));
+        lines.add("  " + HEX.encode(last) + "  ");
+        lines.add(HEX.encode(first));
+        lines.add(HEX.encode(middle));
+        final String base = write("keys", lines, 0.01);
+        try (final SortedHashFile hashFile = SortedHashFile.open(path("keys.hashes"))) {
+            assertEquals(3, hashFile.size());
+            assertTrue(hashFile.contains(first));
+            assertTrue(hashFile.contains(middle));
+            assertTrue(hashFile.contains(last));
+            assertFalse(hashFile.contains(randomHash()));
+        }
+        try (final CompromisedKeyList list = CompromisedKeyList.open(base)) {
+            assertTrue(list.isCompromised(first));
+            assertTrue(list.isCompromised(last));
+        }
+    }
+
+    @Test
+    public void emptyListContainsNothing() throws Exception {
+        try (final CompromisedKeyList list = CompromisedKeyList.open(writeHashes("keys", new ArrayList<>()))) {
+            assertFalse(list.isCompromised(randomHash()));
+        }
+    }
+
+    @Test
+    public void bloomFilterHasNoFalseNegativesAndFewFalsePositives() throws Exception {
+        final List<byte[]> hashes = randomHashes(10000);
+        writeHashes("keys", hashes);
+        try (final MappedBloomFilter bloomFilter = MappedBloomFilter.open(path("keys.bloom"))) {
+            for (final byte[] hash : hashes) {
+                assertTrue(bloomFilter.mightContain(hash));
+            }
+            int falsePositives = 0;
+            for (final byte[] hash : randomHashes(10000)) {
+                if (bloomFilter.mightContain(hash)) {
+                    falsePositives++;
+                }
+            }
+            // The false positive rate is 0.01, i.e. about 100 of 10000
+            assertTrue("False positives: " + falsePositives, falsePositives < 200);
+        }
+    }
+
+    @Test
+    public void lineWhichIsNotAHashIsRejected() throws Exception {
+        for (final String line : new String[] { "abc", HEX.encode(randomHash()).replace('a', 'g').replace('0', 'g'),
+                HEX.encode(randomHash()) + "00" }) {
+            try {
+                write("keys", Collections.singletonList(line), 0.01);
+                fail("The line " + line + " was accepted.");
+            } catch (final IOException e) {
+                assertTrue(e.getMessage().startsWith("Line 1 "));
+            }
+        }
+    }
+
+    @Test
+    public void filesFromDifferentGenerationsAreNotUsedTogether() throws Exception {
+        final List<byte[]> oldHashes = randomHashes(100);
+        final List<byte[]> newHashes = new ArrayList<>(oldHashes);
+        newHashes.addAll(randomHashes(100));
+        final String base = writeHashes("keys", oldHashes);
+        writeHashes("new-keys", newHashes);
+        // The state between the two moves made by the writer: a new hash file and the old Bloom filter
+        move("new-keys.hashes", "keys.hashes");
+        try {
+            CompromisedKeyList.open(base).close();
+            fail("The hash file was used with the Bloom filter of another generation.");
+        } catch (final IOException e) {
+            // Expected
+        }
+        move("new-keys.bloom", "keys.bloom");
+        try (final CompromisedKeyList list = CompromisedKeyList.open(base)) {
+            for (final byte[] hash : newHashes) {
+                assertTrue(list.isCompromised(hash));
+            }
+        }
+    }
+
+    @Test
+    public void openWaitsForTheSecondFileToBeMoved() throws Exception {
+        final List<byte[]> newHashes = randomHashes(100);
+        final String base = writeHashes("keys", randomHashes(100));
+        writeHashes("new-keys", newHashes);
+        move("new-keys.hashes", "keys.hashes");
+        final Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+                move("new-keys.bloom", "keys.bloom");
+            } catch (final IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        writer.start();
+        try (final CompromisedKeyList list = CompromisedKeyList.open(base)) {
+            assertTrue(list.isCompromised(newHashes.get(0)));
+        } finally {
+            writer.join();
+        }
+    }
+
+    @Test
+    public void truncatedFilesAreRejected() throws Exception {
+        writeHashes("keys", randomHashes(10));
+        for (final String file : new String[] { "keys.hashes", "keys.bloom" }) {
+            final byte[] content = Files.readAllBytes(path(file));
+            Files.write(path(file), Arrays.copyOf(content, content.length - 8));
+        }
+        try {
+            SortedHashFile.open(path("keys.hashes")).close();
+            fail("A truncated hash file was opened.");
+        } catch (final IOException e) {
+            // Expected
+        }
+        try {
+            MappedBloomFilter.open(path("keys.bloom")).close();
+            fail("A truncated Bloom filter was opened.");
+        } catch (final IOException e) {
+            // Expected
+        }
+    }
+}
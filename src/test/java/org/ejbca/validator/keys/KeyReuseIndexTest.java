@@ -0,0 +1,189 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class KeyReuseIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final Random random = new Random(1);
+    private String base;
+    private byte[] subject;
+    private byte[] otherSubject;
+
+    @Before
+    public void createSubjects() {
+        base = folder.getRoot().toPath().resolve("key-reuse").toString();
+        subject = randomHash();
+        otherSubject = randomHash();
+    }
+
+    private byte[] randomHash() {
+        final byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        return hash;
+    }
+
+    private Path path(final String suffix) {
+        return folder.getRoot().toPath().resolve("key-reuse" + suffix);
+    }
+
+    private long numberOfRecords() throws IOException {
+        return (Files.size(path(KeyReuseIndex.LOG_SUFFIX)) - KeyReuseIndex.LOG_HEADER_LENGTH)
+                / KeyReuseIndex.RECORD_LENGTH;
+    }
+
+    @Test
+    public void keyIsOnlyReusedWithAnotherSubject() throws Exception {
+        final byte[] key = randomHash();
+        try (final KeyReuseIndex index = new KeyReuseIndex(base)) {
+            assertFalse(index.checkAndRecord(key, subject));
+            assertFalse(index.checkAndRecord(key, subject));
+            assertTrue(index.checkAndRecord(key, otherSubject));
+            assertFalse(index.checkAndRecord(randomHash(), otherSubject));
+        }
+        // A reused key is not recorded
+        assertEquals(3, numberOfRecords());
+    }
+
+    @Test
+    public void recordsArePersistent() throws Exception {
+        final byte[] key = randomHash();
+        try (final KeyReuseIndex index = new KeyReuseIndex(base)) {
+            index.checkAndRecord(key, subject);
+        }
+        try (final KeyReuseIndex index = new KeyReuseIndex(base)) {
+            assertTrue(index.checkAndRecord(key, otherSubject));
+            assertFalse(index.checkAndRecord(key, subject));
+        }
+    }
+
+    @Test
+    public void indexIsResizedWhenItFillsUp() throws Exception {
+        final List<byte[]> keys = new ArrayList<>();
+        try (final KeyReuseIndex index = new KeyReuseIndex(base)) {
+            for (int i = 0; i < 5000; i++) {
+                final byte[] key = randomHash();
+                keys.add(key);
+                assertFalse(index.checkAndRecord(key, subject));
+            }
+            for (final byte[] key : keys) {
+                assertTrue(index.checkAndRecord(key, otherSubject));
+            }
+        }
+        assertEquals(5000, numberOfRecords());
+    }
+
+    @Test
+    public void compactionKeepsTheMostRecentRecordOfEachKey() throws Exception {
+        final byte[] key = randomHash();
+        final byte[] otherKey = randomHash();
+        try (final KeyReuseIndex index = new KeyReuseIndex(base)) {
+            for (int i = 0; i < 3; i++) {
+                index.checkAndRecord(key, subject);
+            }
+            index.checkAndRecord(otherKey, otherSubject);
+            assertEquals(4, numberOfRecords());
+            assertEquals(2, index.compact(0));
+            assertEquals(2, numberOfRecords());
+            assertTrue(index.checkAndRecord(key, otherSubject));
+            assertTrue(index.checkAndRecord(otherKey, subject));
+        }
+    }
+
+    @Test
+    public void compactionDropsExpiredRecords() throws Exception {
+        final byte[] key = randomHash();
+        try (final KeyReuseIndex index = new KeyReuseIndex(base)) {
+            index.checkAndRecord(key, subject);
+            assertEquals(0, index.compact(System.currentTimeMillis() + 1));
+            assertEquals(0, numberOfRecords());
+            assertFalse(index.checkAndRecord(key, otherSubject));
+        }
+    }
+
+    @Test
+    public void filesReplacedByAnotherProcessAreReopened() throws Exception {
+        final byte[] key = randomHash();
+        final byte[] otherKey = randomHash();
+        try (final KeyReuseIndex index = new KeyReuseIndex(base);
+                final KeyReuseIndex otherIndex = new KeyReuseIndex(base)) {
+            index.checkAndRecord(key, subject);
+            // Replaces the log and the index with new files
+            assertEquals(1, otherIndex.compact(0));
+            otherIndex.checkAndRecord(otherKey, subject);
+            assertTrue(index.checkAndRecord(otherKey, otherSubject));
+            assertTrue(index.checkAndRecord(key, otherSubject));
+            assertEquals(0, otherIndex.compact(Long.MAX_VALUE));
+            assertFalse(index.checkAndRecord(key, otherSubject));
+            assertTrue(otherIndex.checkAndRecord(key, subject));
+        }
+    }
+
+    @Test
+    public void missingOrCorruptIndexIsRebuiltFromTheLog() throws Exception {
+        final byte[] key = randomHash();
+        try (final KeyReuseIndex index = new KeyReuseIndex(base)) {
+            index.checkAndRecord(key, subject);
+        }
+        Files.delete(path(KeyReuseIndex.INDEX_SUFFIX));
+        try (final KeyReuseIndex index = new KeyReuseIndex(base)) {
+            assertTrue(index.checkAndRecord(key, otherSubject));
+        }
+        Files.write(path(KeyReuseIndex.INDEX_SUFFIX), new byte[64]);
+        try (final KeyReuseIndex index = new KeyReuseIndex(base)) {
+            assertTrue(index.checkAndRecord(key, otherSubject));
+        }
+    }
+
+    @Test
+    public void partiallyWrittenRecordIsDropped() throws Exception {
+        final byte[] key = randomHash();
+        try (final KeyReuseIndex index = new KeyReuseIndex(base)) {
+            index.checkAndRecord(key, subject);
+        }
+        Files.write(path(KeyReuseIndex.LOG_SUFFIX), new byte[KeyReuseIndex.RECORD_LENGTH / 2],
+                StandardOpenOption.APPEND);
+        try (final KeyReuseIndex index = new KeyReuseIndex(base)) {
+            assertFalse(index.checkAndRecord(randomHash(), subject));
+            assertTrue(index.checkAndRecord(key, otherSubject));
+        }
+        assertEquals(KeyReuseIndex.LOG_HEADER_LENGTH + 2 * KeyReuseIndex.RECORD_LENGTH,
+                Files.size(path(KeyReuseIndex.LOG_SUFFIX)));
+    }
+}
@@ -0,0 +1,126 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.module;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.ejbca.validator.dns.CaaResolver;
+import org.ejbca.validator.dns.StubDnsServer;
+import org.ejbca.validator.exception.ModuleCreationException;
+import org.ejbca.validator.extraction.data.CertificateData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+public class CaaPermitsModuleTest {
+    private StubDnsServer server;
+    private CaaPermitsModule module;
+
+    @Before
+    public void start() throws Exception {
+        server = new StubDnsServer((id, name, overTcp) -> {
+            if ("example.test".equals(name)) {
+                return StubDnsServer.response(id, name, 0,
+                        Arrays.asList(StubDnsServer.caa(name, 300, "issue", "ca.test")), Collections.emptyList());
+            }
+            if ("other.test".equals(name)) {
+                return StubDnsServer.response(id, name, 0,
+                        Arrays.asList(StubDnsServer.caa(name, 300, "issue", "otherca.test")), Collections.emptyList());
+            }
+            return StubDnsServer.response(id, name, 0, Collections.emptyList(),
+                    Arrays.asList(StubDnsServer.soa("test", 3600, 60)));
+        });
+        module = new CaaPermitsModule("caaPermits", new CaaResolver(server.getAddress()),
+                ImmutableSet.of("ca.test"), 2000);
+    }
+
+    @After
+    public void stop() throws Exception {
+        server.close();
+        System.clearProperty(CaaPermitsModule.ISSUER_DOMAINS_PROPERTY);
+        System.clearProperty(CaaPermitsModule.RESOLVER_PROPERTY);
+        System.clearProperty(CaaPermitsModule.TIMEOUT_PROPERTY);
+    }
+
+    private static CertificateData part(final String... hostnames) {
+        final List<String> dataItems = Arrays.asList(hostnames);
+        return new CertificateData() {
+            @Override
+            public String getPartName() {
+                return "DNS";
+            }
+
+            @Override
+            public List<String> getDataItems() {
+                return dataItems;
+            }
+        };
+    }
+
+    @Test
+    public void sharedParentDomainsAreQueriedOnce() {
+        final Map<String, Boolean> results = module.validate(
+                part("a.example.test", "b.a.example.test", "*.example.test", "example.test"), Deadline.none());
+        assertEquals(4, results.size());
+        assertTrue(results.values().stream().allMatch(Boolean::booleanValue));
+        assertEquals(1, server.getUdpQueries("a.example.test"));
+        assertEquals(1, server.getUdpQueries("example.test"));
+        // The relevant record set is found at example.test, but the whole tree is looked up in one batch
+        assertEquals(1, server.getUdpQueries("test"));
+    }
+
+    @Test
+    public void recordSetOfAnotherCaIsNotPermitted() {
+        final Map<String, Boolean> results = module.validate(part("www.other.test", "www.example.test"),
+                Deadline.none());
+        assertFalse(results.get("www.other.test"));
+        assertTrue(results.get("www.example.test"));
+        assertEquals(1, server.getUdpQueries("test"));
+    }
+
+    @Test
+    public void timeoutMustBeAPositiveNumber() throws Exception {
+        System.setProperty(CaaPermitsModule.ISSUER_DOMAINS_PROPERTY, "ca.test");
+        System.setProperty(CaaPermitsModule.RESOLVER_PROPERTY, "127.0.0.1:" + server.getAddress().getPort());
+        for (final String timeout : new String[] { "0", "-1", "2s" }) {
+            System.setProperty(CaaPermitsModule.TIMEOUT_PROPERTY, timeout);
+            try {
+                CaaPermitsModule.builder().setModuleName("caaPermits").prepare();
+                fail("The timeout " + timeout + " was accepted.");
+            } catch (final ModuleCreationException e) {
+                // Expected
+            }
+        }
+        System.setProperty(CaaPermitsModule.TIMEOUT_PROPERTY, "1");
+        CaaPermitsModule.builder().setModuleName("caaPermits").prepare();
+    }
+}
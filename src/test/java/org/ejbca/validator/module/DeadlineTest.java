@@ -0,0 +1,82 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.module;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.ejbca.validator.exception.DeadlineExceededException;
+import org.junit.Test;
+
+public class DeadlineTest {
+    @Test
+    public void noDeadlineNeverExpires() {
+        assertEquals(Long.MAX_VALUE, Deadline.none().remainingNanos());
+        Deadline.none().forModule("+isHostname", 0).check("DNS", 0, 1);
+    }
+
+    @Test
+    public void expiredDeadlineNamesTheModuleAndProgress() throws Exception {
+        final Deadline deadline = Deadline.after(1).forModule("+isHostname", 0);
+        Thread.sleep(5);
+        assertEquals(0, deadline.remainingNanos());
+        try {
+            deadline.check("DNS", 2, 3);
+            fail("An expired deadline was not detected.");
+        } catch (final DeadlineExceededException e) {
+            assertEquals("Validation deadline of 1 ms exceeded in module +isHostname while validating part DNS "
+                    + "after 2 of 3 data items.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void moduleBudgetShorterThanTheDeadlineIsUsed() throws Exception {
+        final Deadline deadline = Deadline.after(60000).forModule("+isHostname", 1);
+        Thread.sleep(5);
+        try {
+            deadline.check("CN", 0, 1);
+            fail("An expired time budget was not detected.");
+        } catch (final DeadlineExceededException e) {
+            assertEquals("Module +isHostname exceeded its time budget of 1 ms while validating part CN "
+                    + "after 0 of 1 data items.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void deadlineShorterThanTheModuleBudgetIsUsed() throws Exception {
+        final Deadline deadline = Deadline.after(1).forModule("+isHostname", 60000);
+        Thread.sleep(5);
+        try {
+            deadline.check("CN", 0, 1);
+            fail("An expired deadline was not detected.");
+        } catch (final DeadlineExceededException e) {
+            assertTrue(e.getMessage().startsWith("Validation deadline of 1 ms exceeded"));
+        }
+    }
+
+    @Test
+    public void moduleBudgetWithoutDeadlineIsUsed() {
+        final long remainingNanos = Deadline.none().forModule("+isHostname", 60000).remainingNanos();
+        assertTrue(remainingNanos > 0 && remainingNanos <= 60000L * 1000 * 1000);
+    }
+}
@@ -0,0 +1,106 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.module;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.IDN;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.ejbca.validator.confusables.ConfusablesTable;
+import org.ejbca.validator.confusables.ProtectedSkeletons;
+import org.ejbca.validator.extraction.data.CertificateData;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NotConfusableModuleTest {
+    private NotConfusableModule module;
+
+    @Before
+    public void createModule() throws Exception {
+        module = new NotConfusableModule("notConfusable", ConfusablesTable.load(), ProtectedSkeletons.load());
+    }
+
+    private static CertificateData part(final String... hostnames) {
+        final List<String> dataItems = Arrays.asList(hostnames);
+        return new CertificateData() {
+            @Override
+            public String getPartName() {
+                return "DNS";
+            }
+
+            @Override
+            public List<String> getDataItems() {
+                return dataItems;
+            }
+        };
+    }
+
+    private boolean isNotConfusable(final String hostname) {
+        final Map<String, Boolean> results = module.validate(part(hostname), Deadline.none());
+        assertEquals(1, results.size());
+        return results.get(hostname);
+    }
+
+    @Test
+    public void ordinaryHostnamesAreAccepted() {
+        assertTrue(isNotConfusable("www.example.com"));
+        assertTrue(isNotConfusable("www.google.com"));
+        assertTrue(isNotConfusable("mail.paypal.com"));
+    }
+
+    @Test
+    public void labelConfusableWithABrandIsRejected() {
+        assertFalse(isNotConfusable("www.g00gle.com"));
+        assertFalse(isNotConfusable("login.rnicrosoft.com"));
+        assertFalse(isNotConfusable("PAYPA1.com"));
+    }
+
+    @Test
+    public void wholeScriptConfusableALabelIsRejected() {
+        // "apple" spelled with Cyrillic letters only, so only the skeleton reveals the spoof
+        final String apple = IDN.toASCII("\u0430\u0440\u0440\u04cf\u0435", IDN.ALLOW_UNASSIGNED);
+        assertFalse(isNotConfusable(apple + ".com"));
+    }
+
+    @Test
+    public void mixedScriptLabelIsRejected() {
+        // Latin with a Cyrillic 'a'
+        assertFalse(isNotConfusable(IDN.toASCII("ex\u0430mple") + ".com"));
+        // Latin with a Greek 'o'
+        assertFalse(isNotConfusable(IDN.toASCII("f\u03bfo") + ".com"));
+    }
+
+    @Test
+    public void allowedScriptCombinationsAreAccepted() {
+        // "ellada" in Greek
+        assertTrue(isNotConfusable(IDN.toASCII("\u03b5\u03bb\u03bb\u03ac\u03b4\u03b1") + ".com"));
+        // Han and Hiragana, as used in Japanese, combined with Latin
+        assertTrue(isNotConfusable(IDN.toASCII("\u4f8b\u3048abc") + ".jp"));
+        // Digits and hyphens are common to all scripts
+        assertTrue(isNotConfusable(IDN.toASCII("\u03b5\u03bb-2") + ".com"));
+    }
+}
@@ -0,0 +1,80 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.module;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.ejbca.validator.exception.ModuleCreationException;
+import org.junit.Test;
+
+public class ValidatorModuleFactoryTest {
+    private static void prepare(final String... args) {
+        try (final DataFileCache dataFileCache = new DataFileCache()) {
+            ValidatorModuleFactory.prepare(Arrays.asList(args), dataFileCache);
+        }
+    }
+
+    private static void assertRejected(final String arg, final String reason) {
+        try {
+            prepare(arg);
+            fail("The module specification " + arg + " was accepted.");
+        } catch (final ModuleCreationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(reason));
+        }
+    }
+
+    @Test
+    public void moduleWithAndWithoutTimeBudgetIsAccepted() {
+        prepare("+isHostname=DNS", "-isHostname:500=CN,DNS");
+    }
+
+    @Test
+    public void timeBudgetWhichIsNotAPositiveNumberIsRejected() {
+        for (final String timeBudget : new String[] { "0", "-5", "abc", "", "1.5" }) {
+            assertRejected("+isHostname:" + timeBudget + "=DNS", "The time budget must be a positive number");
+        }
+    }
+
+    @Test
+    public void moreThanOneTimeBudgetIsRejected() {
+        assertRejected("+isHostname:100:200=DNS", "Too many delimiters ':'");
+        assertRejected("+isHostname:100:=DNS", "Too many delimiters ':'");
+    }
+
+    @Test
+    public void malformedSpecificationsAreRejected() {
+        assertRejected("+isHostname", "Missing delimiter '='");
+        assertRejected("isHostname:100=DNS", "Missing mode -/+");
+        assertRejected("+noSuchModule:100=DNS", "No module with name 'noSuchModule'");
+    }
+
+    @Test
+    public void emptyPlanIsAccepted() {
+        try (final DataFileCache dataFileCache = new DataFileCache()) {
+            ValidatorModuleFactory.prepare(Collections.emptyList(), dataFileCache);
+        }
+    }
+}
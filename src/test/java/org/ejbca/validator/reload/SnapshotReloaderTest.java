@@ -0,0 +1,298 @@
+/***********************************************************************************************************
+ * The MIT License                                                                                         *
+ *                                                                                                         *
+ * Copyright 2018 Bastian Fredriksson                                                                      *
+ *                                                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software           *
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,       *
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,   *
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,   *
+ * subject to the following conditions:                                                                    *
+ *                                                                                                         *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial    *
+ * portions of the Software.                                                                               *
+ *                                                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT   *
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.     *
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, *
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     *
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                                                  *
+ ***********************************************************************************************************/
+
+package org.ejbca.validator.reload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.ejbca.validator.keys.CompromisedKeyList;
+import org.ejbca.validator.keys.CompromisedKeyListWriter;
+import org.ejbca.validator.module.DataFileCache;
+import org.ejbca.validator.module.NotCompromisedKeyModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.BaseEncoding;
+
+public class SnapshotReloaderTest {
+    private static final String COMPROMISED_HASH = "ab2a2b9a2bd1fde7d5d5e1a4e46e5c2b8d3f4ea5e1b4c2f0d3e2a1b0c9d8e7f6";
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private Path planFile;
+    private SnapshotReloader reloader;
+    private Thread writer;
+    private final AtomicBoolean writing = new AtomicBoolean(true);
+
+    @Before
+    public void writePlan() throws IOException {
+        planFile = folder.getRoot().toPath().resolve("plan.txt");
+        writePlan("+isHostname=DNS");
+    }
+
+    @After
+    public void stop() throws Exception {
+        writing.set(false);
+        if (writer != null) {
+            writer.join();
+        }
+        if (reloader != null) {
+            reloader.close();
+        }
+        System.clearProperty(NotCompromisedKeyModule.COMPROMISED_KEYS_PROPERTY);
+    }
+
+    /**
+     * Replace the plan file atomically.
+     */
+    private void writePlan(final String... plan) throws IOException {
+        final Path tmp = folder.getRoot().toPath().resolve("plan.tmp");
+        Files.write(tmp, Arrays.asList(plan), StandardCharsets.UTF_8);
+        Files.move(tmp, planFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Write a list of compromised keys using the offline tool.
+     */
+    private void writeCompromisedKeys(final Path base, final String... hashes) throws IOException {
+        final Path input = folder.getRoot().toPath().resolve("compromised-keys.txt");
+        Files.write(input, Arrays.asList(hashes), StandardCharsets.US_ASCII);
+        CompromisedKeyListWriter.main(new String[] { input.toString(), base.toString() });
+    }
+
+    private ValidationSnapshot current() {
+        try (final ValidationSnapshot.Handle handle = reloader.acquire()) {
+            return handle.getSnapshot();
+        }
+    }
+
+    /**
+     * Wait until the snapshot has been replaced by the watcher.
+     *
+     * @return the time it took in milliseconds.
+     */
+    private long awaitReload(final ValidationSnapshot oldSnapshot, final long timeoutMillis) throws Exception {
+        final long start = System.nanoTime();
+        while (current() == oldSnapshot) {
+            final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (elapsedMillis > timeoutMillis) {
+                fail("The snapshot was not reloaded within " + timeoutMillis + " ms.");
+            }
+            Thread.sleep(20);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Start a thread which keeps replacing a file until the test is done.
+     */
+    private void keepWriting(final Path file, final String content) {
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        writer = new Thread(() -> {
+            try {
+                while (writing.get()) {
+                    Files.write(tmp, Collections.singletonList(content), StandardCharsets.UTF_8);
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    Thread.sleep(10);
+                }
+            } catch (final IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        writer.start();
+    }
+
+    private static void assertOpen(final DataFileCache dataFileCache, final String base) throws IOException {
+        final CompromisedKeyList compromisedKeyList = dataFileCache.get(base, CompromisedKeyList.class,
+                path -> {
+                    throw new IOException("The list was not open.");
+                }, Collections.emptyList());
+        assertTrue(compromisedKeyList.isCompromised(
+                BaseEncoding.base16().lowerCase().decode(COMPROMISED_HASH)));
+    }
+
+    private static void assertClosed(final DataFileCache dataFileCache, final String base) throws IOException {
+        try {
+            assertOpen(dataFileCache, base);
+            fail("The data files of a released snapshot are still open.");
+        } catch (final IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void reloadSwapsInTheNewPlan() throws Exception {
+        reloader = new SnapshotReloader(planFile);
+        try (final ValidationSnapshot.Handle handle = reloader.acquire()) {
+            assertEquals(Arrays.asList("+isHostname=DNS"), handle.getPlan());
+        }
+        writePlan("# Comment", "", "+isHostname:500=DNS", "-isHostname=CN");
+        assertTrue(reloader.reload());
+        try (final ValidationSnapshot.Handle handle = reloader.acquire()) {
+            assertEquals(Arrays.asList("+isHostname:500=DNS", "-isHostname=CN"), handle.getPlan());
+        }
+    }
+
+    @Test
+    public void invalidPlanKeepsTheOldSnapshot() throws Exception {
+        reloader = new SnapshotReloader(planFile);
+        final ValidationSnapshot snapshot = current();
+        for (final String[] plan : new String[][] { { "+noSuchModule=DNS" }, { "+isHostname:0=DNS" }, { "# Empty" } }) {
+            writePlan(plan);
+            assertFalse(reloader.reload());
+            assertSame(snapshot, current());
+        }
+        Files.delete(planFile);
+        assertFalse(reloader.reload());
+        assertSame(snapshot, current());
+    }
+
+    @Test
+    public void dataFilesAreClosedWhenTheLastHandleIsClosed() throws Exception {
+        final Path base = folder.getRoot().toPath().resolve("compromised-keys");
+        writeCompromisedKeys(base, COMPROMISED_HASH);
+        System.setProperty(NotCompromisedKeyModule.COMPROMISED_KEYS_PROPERTY, base.toString());
+        writePlan("+notCompromisedKey=SPKI");
+        reloader = new SnapshotReloader(planFile);
+        final ValidationSnapshot.Handle handle = reloader.acquire();
+        final DataFileCache dataFileCache = handle.getSnapshot().getDataFileCache();
+        assertTrue(reloader.reload());
+        // The old snapshot is still used by the validation holding the handle
+        assertOpen(dataFileCache, base.toString());
+        handle.close();
+        assertClosed(dataFileCache, base.toString());
+    }
+
+    @Test
+    public void handleOnlyReleasesItsReferenceOnce() throws Exception {
+        final Path base = folder.getRoot().toPath().resolve("compromised-keys");
+        writeCompromisedKeys(base, COMPROMISED_HASH);
+        System.setProperty(NotCompromisedKeyModule.COMPROMISED_KEYS_PROPERTY, base.toString());
+        writePlan("+notCompromisedKey=SPKI");
+        reloader = new SnapshotReloader(planFile);
+        final ValidationSnapshot.Handle handle = reloader.acquire();
+        final ValidationSnapshot.Handle otherHandle = reloader.acquire();
+        final DataFileCache dataFileCache = handle.getSnapshot().getDataFileCache();
+        assertTrue(reloader.reload());
+        handle.close();
+        handle.close();
+        assertOpen(dataFileCache, base.toString());
+        try {
+            handle.createModuleExecutors(null);
+            fail("A closed handle was used.");
+        } catch (final IllegalStateException e) {
+            // Expected
+        }
+        otherHandle.close();
+        assertClosed(dataFileCache, base.toString());
+    }
+
+    @Test
+    public void closedReloaderCannotBeUsed() throws Exception {
+        final Path base = folder.getRoot().toPath().resolve("compromised-keys");
+        writeCompromisedKeys(base, COMPROMISED_HASH);
+        System.setProperty(NotCompromisedKeyModule.COMPROMISED_KEYS_PROPERTY, base.toString());
+        writePlan("+notCompromisedKey=SPKI");
+        reloader = new SnapshotReloader(planFile);
+        final ValidationSnapshot.Handle handle = reloader.acquire();
+        final DataFileCache dataFileCache = handle.getSnapshot().getDataFileCache();
+        reloader.close();
+        try {
+            reloader.acquire();
+            fail("A snapshot was acquired from a closed reloader.");
+        } catch (final IllegalStateException e) {
+            // Expected
+        }
+        assertOpen(dataFileCache, base.toString());
+        handle.close();
+        assertClosed(dataFileCache, base.toString());
+        reloader = null;
+    }
+
+    @Test
+    public void changedPlanFileIsReloaded() throws Exception {
+        reloader = new SnapshotReloader(planFile);
+        final ValidationSnapshot snapshot = current();
+        writePlan("-isHostname=DNS");
+        awaitReload(snapshot, 5000);
+        try (final ValidationSnapshot.Handle handle = reloader.acquire()) {
+            assertEquals(Arrays.asList("-isHostname=DNS"), handle.getPlan());
+        }
+    }
+
+    @Test
+    public void changesToOtherFilesDoNotPostponeTheReload() throws Exception {
+        reloader = new SnapshotReloader(planFile);
+        final ValidationSnapshot snapshot = current();
+        // E.g. a log file, the audit log or the key reuse index in the same directory
+        keepWriting(folder.getRoot().toPath().resolve("plan.txt.log"), "Validated a certificate.");
+        Thread.sleep(100);
+        writePlan("-isHostname=DNS");
+        // Reloaded about half a second after the change to the plan file
+        assertTrue(awaitReload(snapshot, 3000) < 3000);
+    }
+
+    @Test
+    public void reloadIsPostponedAtMostFiveSeconds() throws Exception {
+        reloader = new SnapshotReloader(planFile);
+        final ValidationSnapshot snapshot = current();
+        keepWriting(planFile, "-isHostname=DNS");
+        awaitReload(snapshot, 8000);
+    }
+
+    @Test
+    public void dataFileIsWatchedWhateverItsPath() throws Exception {
+        final Path directory = folder.newFolder("keys").toPath();
+        final Path link = folder.getRoot().toPath().resolve("link");
+        Files.createSymbolicLink(link, directory);
+        final Path base = directory.resolve("compromised-keys");
+        writeCompromisedKeys(base, COMPROMISED_HASH);
+        writePlan("+notCompromisedKey=SPKI");
+        for (final Path configuredBase : new Path[] { directory.resolve("../keys/./compromised-keys"),
+                link.resolve("compromised-keys") }) {
+            System.setProperty(NotCompromisedKeyModule.COMPROMISED_KEYS_PROPERTY, configuredBase.toString());
+            reloader = new SnapshotReloader(planFile);
+            final ValidationSnapshot snapshot = current();
+            writeCompromisedKeys(base, COMPROMISED_HASH);
+            awaitReload(snapshot, 5000);
+            assertNotSame(snapshot, current());
+            reloader.close();
+            reloader = null;
+        }
+    }
+}